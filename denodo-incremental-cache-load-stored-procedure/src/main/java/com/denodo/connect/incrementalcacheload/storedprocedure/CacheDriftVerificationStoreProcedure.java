@@ -0,0 +1,165 @@
+package com.denodo.connect.incrementalcacheload.storedprocedure;
+
+import java.sql.Types;
+import java.util.List;
+
+import com.denodo.connect.incrementalcacheload.storedprocedure.util.CacheDriftDetector;
+import com.denodo.connect.incrementalcacheload.storedprocedure.util.CacheRefresher;
+import com.denodo.connect.incrementalcacheload.storedprocedure.util.IncrementalCacheLoadStoreProcedureException;
+import com.denodo.connect.incrementalcacheload.storedprocedure.util.InputParametersVO;
+import com.denodo.connect.incrementalcacheload.storedprocedure.util.RefreshQueryBuilder;
+import com.denodo.connect.incrementalcacheload.storedprocedure.util.Utils;
+import com.denodo.vdb.engine.storedprocedure.AbstractStoredProcedure;
+import com.denodo.vdb.engine.storedprocedure.DatabaseEnvironment;
+import com.denodo.vdb.engine.storedprocedure.DatabaseEnvironmentImpl;
+import com.denodo.vdb.engine.storedprocedure.StoredProcedureException;
+import com.denodo.vdb.engine.storedprocedure.StoredProcedureParameter;
+
+/***
+ * Checks if the cache of a view has drifted from its source, for example after missed deltas or failed incremental
+ * cache loads, without having to perform a full reload. The PK space is split in ranges whose row count and checksum
+ * are compared between the cached and the uncached view, and only the mismatching ranges are split again until the
+ * divergent rows are found. Optionally, these rows are loaded into the cache with the same chunked queries used by
+ * the Incremental Cache Load.
+ *
+ */
+public class CacheDriftVerificationStoreProcedure extends AbstractStoredProcedure {
+
+    private static final long serialVersionUID = -4630385618474712365L;
+    private DatabaseEnvironment environment;
+
+    public CacheDriftVerificationStoreProcedure() {
+    }
+
+    /**
+     * This method is invoked when stored procedure is initialized
+     *
+     * @param theEnvironment object that allows communicate with VDP server
+     */
+    @Override
+    public void initialize(DatabaseEnvironment theEnvironment) {
+        super.initialize(theEnvironment);
+        this.environment = theEnvironment;
+    }
+
+    /**
+     * Gets store procedure description
+     *
+     * @return String
+     */
+    @Override
+    public String getDescription() {
+        return "Finds the rows of a view whose cache has drifted from the source and optionally reloads them";
+    }
+
+    /**
+     * Gets store procedure name
+     *
+     * @return String
+     */
+    @Override
+    public String getName() {
+        return CacheDriftVerificationStoreProcedure.class.getName();
+    }
+
+    /**
+     * Method where input and output parameters of the stored procedure are configured
+     *
+     * @return StoredProcedureParameter array with info about stored procedure parameters
+     */
+    @Override
+    public StoredProcedureParameter[] getParameters() {
+        return new StoredProcedureParameter[]{
+            // Input parameters
+            new StoredProcedureParameter("database_name", Types.VARCHAR, StoredProcedureParameter.DIRECTION_IN),
+            new StoredProcedureParameter("view_name", Types.VARCHAR, StoredProcedureParameter.DIRECTION_IN),
+            new StoredProcedureParameter("num_elements_in_clause", Types.VARCHAR,
+                StoredProcedureParameter.DIRECTION_IN),
+            new StoredProcedureParameter("repair", Types.BOOLEAN, StoredProcedureParameter.DIRECTION_IN),
+            // Output parameters
+            new StoredProcedureParameter("checked_ranges", Types.INTEGER, StoredProcedureParameter.DIRECTION_OUT),
+            new StoredProcedureParameter("divergent_rows", Types.INTEGER, StoredProcedureParameter.DIRECTION_OUT),
+            new StoredProcedureParameter("num_updated_rows", Types.INTEGER, StoredProcedureParameter.DIRECTION_OUT)};
+    }
+
+    /**
+     * This method is invoked when the stored procedure is executed
+     *
+     * @param inputValues array with input parameters
+     */
+    @Override
+    public void doCall(Object[] inputValues) throws StoredProcedureException {
+
+        long start = System.nanoTime();
+        log(LOG_DEBUG, "START of the Cache Drift Verification SP.");
+
+        try {
+
+            final DatabaseEnvironmentImpl databaseEnvironmentImpl = (DatabaseEnvironmentImpl) getEnvironment();
+
+            // Input parameter and cache validation
+            Utils.validateViewAndCache(environment, databaseEnvironmentImpl, (String) inputValues[0],
+                (String) inputValues[1], (String) inputValues[2]);
+
+            // Initialization of variables
+            InputParametersVO inputParameters = new InputParametersVO((String) inputValues[0], (String) inputValues[1],
+                null, Integer.valueOf((String) inputValues[2]));
+            Utils.applyOptions(inputParameters);
+            boolean repair = Boolean.TRUE.equals(inputValues[3]);
+
+            log(LOG_DEBUG, "Input parameters: " + inputParameters.toString() + ", repair = " + repair);
+
+            // Get view PK
+            List<String> pkFields = Utils.getPkFieldsByViewNameAndDb(environment,
+                inputParameters.getDatabaseName().replaceAll("\"", ""),
+                inputParameters.getViewName().replaceAll("\"", ""));
+
+            // Search of the rows that are different in source and cache
+            long startAux = System.nanoTime();
+
+            CacheDriftDetector detector = new CacheDriftDetector(environment, inputParameters, pkFields);
+            List<Object[]> divergentKeys = detector.findDivergentKeys();
+
+            long endAux = System.nanoTime();
+            double seconds = (endAux - startAux) / 1000000000.0;
+            log(LOG_TRACE, "END of drift detection: \t" + seconds + " seconds. Checked ranges: "
+                + detector.getCheckedRanges() + ". Divergent rows: " + divergentKeys.size());
+
+            // Cache update of the divergent rows
+            int updatedRows = 0;
+            if (repair && !divergentKeys.isEmpty()) {
+                startAux = System.nanoTime();
+
+                updatedRows = new CacheRefresher(environment, inputParameters, pkFields,
+                    Utils.getCacheDataSourceKey(databaseEnvironmentImpl, inputParameters.getDatabaseName())).refresh(
+                    RefreshQueryBuilder.buildRefreshQueries(inputParameters, pkFields, divergentKeys));
+
+                endAux = System.nanoTime();
+                seconds = (endAux - startAux) / 1000000000.0;
+                log(LOG_TRACE, "END of cache update: \t" + seconds + " seconds.");
+            }
+
+            getProcedureResultSet().addRow(new Object[]{Integer.valueOf(detector.getCheckedRanges()),
+                Integer.valueOf(divergentKeys.size()), Integer.valueOf(updatedRows)});
+
+        } catch (IncrementalCacheLoadStoreProcedureException e) {
+            this.environment.log(LOG_ERROR, e.getMessage());
+            throw e;
+        } catch (Exception e) {
+            this.environment.log(LOG_ERROR, e.getMessage());
+            throw new StoredProcedureException(e);
+        } finally {
+            long end = System.nanoTime();
+            double seconds = (end - start) / 1000000000.0;
+            log(LOG_DEBUG, "END of the Cache Drift Verification SP. Time elapsed: \t " + seconds + " seconds.");
+        }
+
+    }
+
+    @Override
+    public int getNumOfAffectedRows() {
+        // Deprecated
+        return 0;
+    }
+
+}
@@ -1,16 +1,28 @@
 package com.denodo.connect.incrementalcacheload.storedprocedure;
 
+import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.UUID;
 
+import com.denodo.connect.incrementalcacheload.storedprocedure.util.CacheRefresher;
+import com.denodo.connect.incrementalcacheload.storedprocedure.util.ChunkSizeTuner;
+import com.denodo.connect.incrementalcacheload.storedprocedure.util.ClusterRefresher;
 import com.denodo.connect.incrementalcacheload.storedprocedure.util.DBUtils;
 import com.denodo.connect.incrementalcacheload.storedprocedure.util.IncrementalCacheLoadStoreProcedureException;
 import com.denodo.connect.incrementalcacheload.storedprocedure.util.InputParametersVO;
+import com.denodo.connect.incrementalcacheload.storedprocedure.util.KeyStagingTable;
 import com.denodo.connect.incrementalcacheload.storedprocedure.util.QueryList;
 import com.denodo.connect.incrementalcacheload.storedprocedure.util.QueryParameters;
+import com.denodo.connect.incrementalcacheload.storedprocedure.util.RefreshPlan;
+import com.denodo.connect.incrementalcacheload.storedprocedure.util.RefreshQueryBuilder;
+import com.denodo.connect.incrementalcacheload.storedprocedure.util.RefreshStrategySelector;
+import com.denodo.connect.incrementalcacheload.storedprocedure.util.RunHistoryTable;
+import com.denodo.connect.incrementalcacheload.storedprocedure.util.RunRecord;
 import com.denodo.connect.incrementalcacheload.storedprocedure.util.Utils;
 import com.denodo.vdb.engine.storedprocedure.AbstractStoredProcedure;
 import com.denodo.vdb.engine.storedprocedure.DatabaseEnvironment;
@@ -87,6 +99,16 @@ public StoredProcedureParameter[] getParameters() {
             new StoredProcedureParameter("num_updated_rows", Types.VARCHAR, StoredProcedureParameter.DIRECTION_OUT)};
     }
 
+    /**
+     * Whether the procedure has the 'options' input parameter and the 'refresh_details' output parameter. This
+     * procedure keeps the original parameters, so the existing CALLs and Scheduler jobs keep working.
+     *
+     * @return true if the procedure has the 'options' and 'refresh_details' parameters
+     */
+    protected boolean hasOptions() {
+        return false;
+    }
+
     /**
      * This method is invoked when the stored procedure is executed
      *
@@ -96,39 +118,97 @@ public StoredProcedureParameter[] getParameters() {
     public void doCall(Object[] inputValues) throws StoredProcedureException {
 
         long start = System.nanoTime();
+        long startTime = System.currentTimeMillis();
         log(LOG_DEBUG, "START of the Incremental Cache Load SP.");
 
+        // Statistics of this load, if there is a run history. They are recorded from the start, so the loads that fail
+        // before the cache update are recorded too
+        RunHistoryTable historyTable = null;
+        RunRecord runRecord = null;
+        String historyTableName = getHistoryTableOption(inputValues);
+        if (historyTableName != null) {
+            historyTable = new RunHistoryTable(historyTableName);
+            runRecord = new RunRecord();
+            runRecord.setRunId(UUID.randomUUID().toString());
+            runRecord.setDatabaseName(((String) inputValues[0]).replace("\"", ""));
+            runRecord.setViewName(((String) inputValues[1]).replace("\"", ""));
+            runRecord.setStartTime(startTime);
+        }
         try {
 
             final DatabaseEnvironmentImpl databaseEnvironmentImpl = (DatabaseEnvironmentImpl) getEnvironment();
 
-            // Input parameter and cache validation
+            // Input parameter and cache validation. The view PK is obtained at the same time
             long startAux = System.nanoTime();
-            Utils.validateInputParametersAndCache(environment, databaseEnvironmentImpl, inputValues);
+            List<String> pkFields = Utils.validateInputParametersAndCache(environment, databaseEnvironmentImpl,
+                inputValues);
             long endAux = System.nanoTime();
             double seconds = (endAux - startAux) / 1000000000.0;
             log(LOG_TRACE, "Time elapsed during validation: \t " + seconds + " seconds.");
 
             // Initialization of variables
+            boolean tuned = Utils.NUM_ELEMENTS_IN_CLAUSE_TUNED.equalsIgnoreCase((String) inputValues[3]);
             InputParametersVO inputParameters = new InputParametersVO((String) inputValues[0], (String) inputValues[1],
-                (String) inputValues[2], Integer.valueOf((String) inputValues[3]));
+                (String) inputValues[2], tuned ? null : Integer.valueOf((String) inputValues[3]));
+            // Without options, the cache is refreshed by chunks of PK values as before the refresh strategies
+            if (hasOptions()) {
+                Utils.applyOptions(inputParameters, (String) inputValues[4], RefreshStrategySelector.STRATEGY_AUTO);
+            } else {
+                Utils.applyOptions(inputParameters);
+            }
+
+            // Chunk size and concurrency recommended by the run history, applied if num_elements_in_clause is tuned
+            String tuningDetails = null;
+            if (historyTable != null) {
+                ChunkSizeTuner.Tuning tuning = new ChunkSizeTuner(getRecentRuns(historyTable, inputParameters),
+                    inputParameters.getConcurrency()).tune();
+                if (tuned) {
+                    inputParameters.setNumElementsInClause(Integer.valueOf(tuning.getChunkSize()));
+                    inputParameters.setConcurrency(Integer.valueOf(tuning.getConcurrency()));
+                    tuningDetails = "tuned " + tuning;
+                } else {
+                    tuningDetails = "recommended " + tuning;
+                }
+                log(LOG_DEBUG, "Run history: " + tuningDetails);
+            }
 
             log(LOG_DEBUG, "Input parameters: " + inputParameters.toString());
 
-            // Get view PK
-            List<String> pkFields = Utils.getPkFieldsByViewNameAndDb(environment,
-                inputParameters.getDatabaseName().replaceAll("\"", ""),
-                inputParameters.getViewName().replaceAll("\"", ""));
+            // Choice of the refresh strategy
+            startAux = System.nanoTime();
+
+            RefreshStrategySelector strategySelector = new RefreshStrategySelector(environment, inputParameters,
+                pkFields);
+            RefreshPlan plan = strategySelector.select();
 
-            // Calculate the PK fields that were updated since the lastUpdateCondition
-            // Distinct clause added as it is not guaranteed that the view PK has no repeated
-            // values
+            endAux = System.nanoTime();
+            seconds = (endAux - startAux) / 1000000000.0;
+            log(LOG_DEBUG, "Refresh plan: " + plan.getDetails() + ". Time elapsed: \t" + seconds + " seconds.");
 
             // Creation of the array of queries to be executed to update the cache
             log(LOG_TRACE, "BEGIN of the building of the query array.");
             startAux = System.nanoTime();
 
-            QueryList queryList = getQueryList(inputParameters, pkFields);
+            QueryList queryList;
+            KeyStagingTable stagingTable = null;
+            if (ClusterRefresher.MODE_WORKER.equals(inputParameters.getClusterMode())) {
+                // Workers refresh the chunks registered by the coordinators
+                queryList = new QueryList(0, Collections.<QueryParameters>emptyList());
+            } else if (RefreshStrategySelector.STRATEGY_STAGING.equals(plan.getStrategy())) {
+                stagingTable = new KeyStagingTable(databaseEnvironmentImpl, inputParameters, pkFields);
+                queryList = stagingTable.stageKeys();
+            } else if (RefreshStrategySelector.STRATEGY_FULL.equals(plan.getStrategy())) {
+                queryList = new QueryList((int) plan.getDeltaRows(), Collections.singletonList(
+                    RefreshQueryBuilder.buildFullRefreshQuery(inputParameters, (int) plan.getDeltaRows())));
+            } else if (RefreshStrategySelector.STRATEGY_PARTITION.equals(plan.getStrategy())) {
+                queryList = getPartitionQueryList(inputParameters);
+            } else {
+                // Calculate the PK fields that were updated since the lastUpdateCondition
+                // Distinct clause added as it is not guaranteed that the view PK has no repeated
+                // values
+                queryList = getQueryList(inputParameters, pkFields,
+                    RefreshStrategySelector.STRATEGY_RANGES.equals(plan.getStrategy()));
+            }
 
             endAux = System.nanoTime();
             seconds = (endAux - startAux) / 1000000000.0;
@@ -138,73 +218,164 @@ public void doCall(Object[] inputValues) throws StoredProcedureException {
             log(LOG_TRACE, "START of cache update");
             startAux = System.nanoTime();
 
-            executeUpdateCache(queryList);
+            String cacheDataSource = Utils.getCacheDataSourceKey(databaseEnvironmentImpl,
+                inputParameters.getDatabaseName());
+            if (runRecord != null) {
+                runRecord.setStrategy(plan.getStrategy());
+                runRecord.setDeltaRows(queryList.getRowCount());
+                runRecord.setChunkSize(RefreshStrategySelector.STRATEGY_STAGING.equals(plan.getStrategy())
+                    ? inputParameters.getStagingChunkSize() : inputParameters.getNumElementsInClause().intValue());
+                runRecord.setConcurrency(inputParameters.getConcurrency() != null
+                    ? inputParameters.getConcurrency().intValue() : 1);
+            }
+
+            String details = plan.getDetails();
+            if (tuningDetails != null) {
+                details = details + "; " + tuningDetails;
+            }
+            CacheRefresher cacheRefresher = null;
+            long refreshStart = System.nanoTime();
+            int updatedRows;
+            try {
+                if (inputParameters.getClusterMode() != null) {
+                    ClusterRefresher clusterRefresher = new ClusterRefresher(databaseEnvironmentImpl, inputParameters,
+                        pkFields, cacheDataSource);
+                    updatedRows = ClusterRefresher.MODE_WORKER.equals(inputParameters.getClusterMode())
+                        ? clusterRefresher.work() : clusterRefresher.coordinate(stagingTable, queryList);
+                    details = details + "; chunks refreshed by this server=" + clusterRefresher.getRefreshedChunks()
+                        + ", failed=" + clusterRefresher.getFailedChunks();
+                } else {
+                    cacheRefresher = new CacheRefresher(environment, inputParameters, pkFields, cacheDataSource);
+                    updatedRows = cacheRefresher.refresh(queryList.getQueryList());
+                    if (RefreshStrategySelector.STRATEGY_FULL.equals(plan.getStrategy())) {
+                        // The full refresh loads all the rows of the view, not only the changed ones
+                        updatedRows = (int) strategySelector.countCachedRows();
+                    }
+                }
+            } finally {
+                if (runRecord != null) {
+                    runRecord.setRefreshMillis((System.nanoTime() - refreshStart) / 1000000);
+                    if (cacheRefresher != null) {
+                        runRecord.setChunkLatencies(cacheRefresher.getChunkLatencies());
+                        runRecord.setErrors(cacheRefresher.getFailedChunks());
+                    }
+                }
+                if (stagingTable != null) {
+                    stagingTable.clean();
+                }
+            }
 
             endAux = System.nanoTime();
             seconds = (endAux - startAux) / 1000000000.0;
             log(LOG_TRACE, "END of cache update: \t" + seconds + " seconds.");
+            if (runRecord != null) {
+                runRecord.setUpdatedRows(updatedRows);
+            }
 
             // Add a row with the stored procedure out parameter as the stored procedure
             // result
             getProcedureResultSet()
                 // 17/12/2019 IMPORTANT: Don't modify any char in this message as it could affect
                 // the way Scheduler parses it
-                .addRow(new Object[]{"Cache Refreshed Successfully. Updated rows (distinct PK values):"
-                    + queryList.getRowCount()});
+                .addRow(hasOptions()
+                    ? new Object[]{"Cache Refreshed Successfully. Updated rows (distinct PK values):" + updatedRows,
+                        details}
+                    : new Object[]{"Cache Refreshed Successfully. Updated rows (distinct PK values):" + updatedRows});
 
         } catch (IncrementalCacheLoadStoreProcedureException e) {
             this.environment.log(LOG_ERROR, e.getMessage());
+            if (runRecord != null) {
+                runRecord.setUpdatedRows(e.getUpdatedRows());
+                runRecord.setErrorMessage(e.getMessage());
+                // Cancelled loads leave the thread interrupted
+                runRecord.setCancelled(Thread.currentThread().isInterrupted());
+            }
             throw e;
         } catch (Exception e) {
             this.environment.log(LOG_ERROR, e.getMessage());
+            if (runRecord != null) {
+                runRecord.setErrorMessage(e.toString());
+                runRecord.setCancelled(Thread.currentThread().isInterrupted());
+            }
             throw new StoredProcedureException(e);
         } finally {
             long end = System.nanoTime();
+            if (runRecord != null) {
+                runRecord.setTotalMillis((end - start) / 1000000);
+                recordRun(historyTable, runRecord);
+            }
             double seconds = (end - start) / 1000000000.0;
             log(LOG_DEBUG, "END of the Incremental Cache Load SP. Time elapsed: \t " + seconds + " seconds.");
         }
 
     }
 
-    private void executeUpdateCache(QueryList queryList) throws StoredProcedureException {
+    /**
+     * Returns the 'history_table' option, or null if there is no history or the options are not valid, that is
+     * reported by the validation of the input parameters
+     */
+    private String getHistoryTableOption(Object[] inputValues) {
 
-        ResultSet aux = null;
-        int i = 1;
-        int updated = 0;
+        if (!hasOptions() || inputValues.length < 5 || inputValues[0] == null || inputValues[1] == null) {
+            return null;
+        }
+        try {
+            return Utils.parseOptions((String) inputValues[4]).get(Utils.OPTION_HISTORY_TABLE);
+        } catch (StoredProcedureException e) {
+            return null;
+        }
+    }
 
-        for (QueryParameters q : queryList.getQueryList()) {
-            try {
-                long iniCache = System.nanoTime();
-                aux = this.environment.executeQuery(q.getQuery(), q.getParameters());
-                long finCache = System.nanoTime();
-                double seconds = (finCache - iniCache) / 1000000000.0;
-                log(LOG_TRACE, "Query " + i + "\t: " + seconds + " seconds.");
-                i++;
-                aux.next();
-                // Count of the updated PKs at this point
-                updated = updated + q.getChunkSize();
-            } catch (SQLException | StoredProcedureException e) {
-                log(LOG_DEBUG, "ERROR in executeUpdateCache(): Query - " + q
-                    + " [Rows updated in cache: " + updated +"]. " + e);
-                throw new IncrementalCacheLoadStoreProcedureException(
-                    "ERROR executing query update of cache [Rows updated in cache: " + updated + "].", e, updated);
-            } finally {
-                DBUtils.closeRs(aux);
-            }
+    /**
+     * Reads the last loads of the view from the run history. Errors are only logged, as the load can be done without
+     * history.
+     */
+    private List<RunRecord> getRecentRuns(RunHistoryTable historyTable, InputParametersVO inputParameters) {
+
+        Connection connection = null;
+        try {
+            connection = getCacheConnection(inputParameters.getDatabaseName());
+            return historyTable.getRecentRuns(connection, inputParameters.getDatabaseName().replace("\"", ""),
+                inputParameters.getViewName().replace("\"", ""), ChunkSizeTuner.HISTORY_RUNS);
+        } catch (SQLException e) {
+            log(LOG_WARN, "ERROR reading run history from " + inputParameters.getHistoryTable() + ": " + e);
+            return Collections.emptyList();
+        } finally {
+            DBUtils.closeConn(connection);
         }
     }
 
+    /**
+     * Stores the statistics of the load in the run history. Errors are only logged, so they do not hide the result of
+     * the load.
+     */
+    private void recordRun(RunHistoryTable historyTable, RunRecord runRecord) {
 
-    private QueryList getQueryList(InputParametersVO inputParameters, List<String> pkFields)
+        Connection connection = null;
+        try {
+            connection = getCacheConnection(runRecord.getDatabaseName());
+            historyTable.record(connection, runRecord);
+            log(LOG_DEBUG, "Run recorded in history: " + runRecord);
+        } catch (Exception e) {
+            // The database may not exist if the load failed in the validation
+            log(LOG_WARN, "ERROR recording run in history: " + e);
+        } finally {
+            DBUtils.closeConn(connection);
+        }
+    }
+
+    private Connection getCacheConnection(String databaseName) {
+        return ((DatabaseEnvironmentImpl) getEnvironment()).getCacheConnection(databaseName.replace("\"", ""), true);
+    }
+
+    private QueryList getQueryList(InputParametersVO inputParameters, List<String> pkFields, boolean ranges)
         throws StoredProcedureException {
 
         long startAux = System.nanoTime();
         // This query obtains all the PK values that match the input condition.
         // They will be used to create the queries to update the cache.
-        String query =
-            "SELECT DISTINCT " + Utils.join(pkFields, ", ") + " FROM " + inputParameters.getDatabaseName() + "."
-                + inputParameters.getViewName() + " WHERE " + inputParameters.getLastUpdateCondition()
-                + " CONTEXT('cache'='off')";
+        // They are sorted according to the 'chunk_order' option, or by PK when the chunks are refreshed as ranges
+        String query = RefreshQueryBuilder.buildDeltaQuery(inputParameters, pkFields, ranges);
 
         int rowCount = 0;
         // Used to know the updated rows when the update cache queries are executed
@@ -218,88 +389,46 @@ private QueryList getQueryList(InputParametersVO inputParameters, List<String> p
             double seconds = (endAux - startAux) / 1000000000.0;
             log(LOG_TRACE, "Time elapsed recovering PKs: \t " + seconds + " seconds.");
 
-
-            //  Variables used to create the query list
-            // Stores the value of the current parameter
-            Object rowValue;
-            // Used to add a number of elements equal to the 'num_elements_in_clause' input SP parameter
-            int pkChunkRowCount = 0;
-            // List of parameters that will be passed in the query execution
-            List<Object> parameters = new ArrayList<>();
-            // List of question marks for the IN clause
-            StringBuilder inClauseParameters = new StringBuilder();
-            boolean firstParameter = true;
-            // Contains the list of OR clauses for the multiple PK cases
-            StringBuilder orClauseParameters = new StringBuilder();
-            String orClause = null;
+            // PK values of the current chunk. Its size is up to the 'num_elements_in_clause' input SP parameter
+            List<Object[]> keys = new ArrayList<>();
             boolean singlePk = pkFields.size() == 1;
+            // Null PK values cannot be part of a range, so they are refreshed by value
+            List<Object[]> nullKeys = new ArrayList<>();
 
             while (rs.next()) {
 
+                Utils.checkCancelled("getting rows to update in cache", 0);
                 rowCount++;
-                pkChunkRowCount++;
-
-                // We have two ways of building the cache update queries:
-                //  1) The PK is simple -> IN clause with a list of parameters (?)
-                //  2) The PK is multiple -> Sequence of OR clauses with (pk_field1 = val1 AND pk_field2 = val2...)
-                if (singlePk) {
 
+                Object[] key = new Object[pkFields.size()];
+                for (int i = 0; i < pkFields.size(); i++) {
+                    key[i] = rs.getObject(i + 1);
+                }
+                if (singlePk && key[0] == null) {
                     // PK is one only field
-                    rowValue = rs.getObject(1) != null ? rs.getObject(1) : "";
-                    parameters.add(rowValue);
-                    if (firstParameter) {
-                        firstParameter = false;
-                    } else {
-                        inClauseParameters.append(",");
-                    }
-                    inClauseParameters.append("?");
-
-                    if (pkChunkRowCount == inputParameters.getNumElementsInClause() || rs.isLast()) {
-                        query =
-                            "SELECT * FROM " + inputParameters.getDatabaseName() + "." + inputParameters.getViewName()
-                                + " WHERE "
-                                + pkFields.get(0) + " IN (" + inClauseParameters.toString() + ") "
-                                + "CONTEXT('cache_preload'='true','cache_invalidate'='matching_rows',"
-                                + "'returnqueryresults'='false','cache_wait_for_load'='true')";
-
-                        queryList.add(buildQueryParameters(query, parameters, pkChunkRowCount));
-
-                        // Reset aux variables
-                        firstParameter = true;
-                        pkChunkRowCount = 0;
-                        parameters.clear();
-                        inClauseParameters.setLength(0);
-                    }
-
-                } else {
-
-                    // PK has two or more fields
-                    if (orClause == null) {
-                        orClause = createOrClause(pkFields);
+                    key[0] = "";
+                    if (ranges) {
+                        nullKeys.add(key);
+                        continue;
                     }
-                    buildOrCondition(pkFields, rs, orClauseParameters, orClause, parameters);
-
-                    if (pkChunkRowCount == inputParameters.getNumElementsInClause() || rs.isLast()) {
-
-                        // Cache refresh of PK Chunk
-                        query = "SELECT * FROM " + inputParameters.getDatabaseName() + "." + inputParameters.getViewName()
-                            + " WHERE " + orClauseParameters.toString()
-                            + " CONTEXT('cache_preload'='true','cache_invalidate'='matching_rows',"
-                            + " 'returnqueryresults'='false','cache_wait_for_load'='true')";
-
-                        queryList.add(buildQueryParameters(query, parameters, pkChunkRowCount));
-
-                        // Reset aux variables
-                        pkChunkRowCount = 0;
-                        orClauseParameters = new StringBuilder();
-                        parameters.clear();
+                }
+                keys.add(key);
 
-                    } else {
-                        // There are more conditions to append
-                        orClauseParameters.append("OR");
-                    }
+                if (keys.size() == inputParameters.getNumElementsInClause().intValue()) {
+                    // Cache refresh of PK Chunk
+                    queryList.add(buildChunkQuery(inputParameters, pkFields, keys, ranges));
+                    keys.clear();
                 }
             }
+
+            if (!keys.isEmpty()) {
+                queryList.add(buildChunkQuery(inputParameters, pkFields, keys, ranges));
+            }
+            if (!nullKeys.isEmpty()) {
+                queryList.add(RefreshQueryBuilder.buildRefreshQuery(inputParameters, pkFields, nullKeys));
+            }
+        } catch (IncrementalCacheLoadStoreProcedureException e) {
+            throw e;
         } catch (Exception e) {
             log(LOG_DEBUG, "ERROR in getQueryList(): " + e);
             throw new StoredProcedureException("ERROR getting rows to update in cache.", e);
@@ -312,34 +441,76 @@ private QueryList getQueryList(InputParametersVO inputParameters, List<String> p
         return new QueryList(rowCount, queryList);
     }
 
-    private QueryParameters buildQueryParameters(String query, List<Object> parameters, int pkChunkRowCount) {
-        QueryParameters queryParameters = new QueryParameters();
-        queryParameters.setQuery(query);
-        queryParameters.setParameters(parameters.toArray());
-        queryParameters.setChunkSize(pkChunkRowCount);
-        return queryParameters;
+    private static QueryParameters buildChunkQuery(InputParametersVO inputParameters, List<String> pkFields,
+        List<Object[]> keys, boolean ranges) {
+        return ranges ? RefreshQueryBuilder.buildRangeRefreshQuery(inputParameters, pkFields, keys)
+            : RefreshQueryBuilder.buildRefreshQuery(inputParameters, pkFields, keys);
     }
 
-    private String createOrClause(List<String> pkFields) {
-        List<String> conditions = new ArrayList<>();
-        for (String pkField : pkFields) {
-            conditions.add(pkField + " = ? ");
-        }
-        // Build an OR clause with all the PK elements splitted by the AND clause
-        return " (" + Utils.join(conditions, " AND ") + ") ";
-    }
+    private QueryList getPartitionQueryList(InputParametersVO inputParameters) throws StoredProcedureException {
 
-    private void buildOrCondition(List<String> pkFields, ResultSet rs,
-        StringBuilder orClauseParameters, String orClause, List<Object> parameters) throws SQLException {
+        // This query obtains the values of the partition column that have rows matching the input condition, and the
+        // number of matching rows of each one
+        String query =
+            "SELECT " + inputParameters.getPartitionColumn() + ", COUNT(*) FROM " + inputParameters.getDatabaseName()
+                + "." + inputParameters.getViewName() + " WHERE " + inputParameters.getLastUpdateCondition()
+                + " GROUP BY " + inputParameters.getPartitionColumn()
+                + (RefreshQueryBuilder.CHUNK_ORDER_PK.equals(inputParameters.getChunkOrder())
+                    ? " ORDER BY " + inputParameters.getPartitionColumn() : "")
+                + " CONTEXT('cache'='off')";
 
-        // 1. Add OR clause to where
-        // The OR clause is always the same. We only need to calculate it once and then append it the requested times
-        orClauseParameters.append(orClause);
+        int rowCount = 0;
+        List<QueryParameters> queryList = new ArrayList<>();
+        ResultSet rs = null;
+        try {
 
-        // 2. Add parameter values to parameter list
-        for (int i = 0; i < pkFields.size(); i++) {
-            parameters.add(rs.getObject(i + 1));
+            log(LOG_DEBUG, "getPartitionQueryList(): query = " + query);
+            rs = this.environment.executeQuery(query);
+
+            List<Object> partitionValues = new ArrayList<>();
+            int chunkRows = 0;
+            int nullPartitionRows = -1;
+            while (rs.next()) {
+
+                Utils.checkCancelled("getting partitions to update in cache", 0);
+                int rows = rs.getInt(2);
+                rowCount = rowCount + rows;
+                if (rs.getObject(1) == null) {
+                    // A NULL value never matches an IN clause, so it is refreshed in its own query
+                    nullPartitionRows = rows;
+                    continue;
+                }
+                partitionValues.add(rs.getObject(1));
+                chunkRows = chunkRows + rows;
+
+                if (partitionValues.size() == inputParameters.getNumElementsInClause().intValue()) {
+                    queryList.add(RefreshQueryBuilder.buildPartitionRefreshQuery(inputParameters, partitionValues,
+                        chunkRows));
+                    partitionValues.clear();
+                    chunkRows = 0;
+                }
+            }
+
+            if (!partitionValues.isEmpty()) {
+                queryList.add(RefreshQueryBuilder.buildPartitionRefreshQuery(inputParameters, partitionValues,
+                    chunkRows));
+            }
+            if (nullPartitionRows >= 0) {
+                queryList.add(RefreshQueryBuilder.buildPartitionRefreshQuery(inputParameters,
+                    Collections.emptyList(), nullPartitionRows));
+            }
+        } catch (IncrementalCacheLoadStoreProcedureException e) {
+            throw e;
+        } catch (Exception e) {
+            log(LOG_DEBUG, "ERROR in getPartitionQueryList(): " + e);
+            throw new StoredProcedureException("ERROR getting partitions to update in cache.", e);
+        } finally {
+            // Close resources
+            DBUtils.closeRs(rs);
         }
+
+        log(LOG_DEBUG, "getPartitionQueryList(): queryList = " + queryList.toString());
+        return new QueryList(rowCount, queryList);
     }
 
     @Override
@@ -0,0 +1,64 @@
+package com.denodo.connect.incrementalcacheload.storedprocedure;
+
+import java.sql.Types;
+
+import com.denodo.vdb.engine.storedprocedure.StoredProcedureParameter;
+
+/***
+ * Incremental Cache Load Stored Procedure with the 'options' input parameter, that configures how the cache is
+ * refreshed, and the 'refresh_details' output parameter. Without options it behaves as
+ * {@link IncrementalCacheLoadStoreProcedure}.
+ *
+ */
+public class IncrementalCacheLoadWithOptionsStoreProcedure extends IncrementalCacheLoadStoreProcedure {
+
+    private static final long serialVersionUID = -3620734829521837194L;
+
+    public IncrementalCacheLoadWithOptionsStoreProcedure() {
+    }
+
+    /**
+     * Gets store procedure description
+     *
+     * @return String
+     */
+    @Override
+    public String getDescription() {
+        return "Performs an incremental cache load of a given view with the given options";
+    }
+
+    /**
+     * Gets store procedure name
+     *
+     * @return String
+     */
+    @Override
+    public String getName() {
+        return IncrementalCacheLoadWithOptionsStoreProcedure.class.getName();
+    }
+
+    /**
+     * Method where input and output parameters of the stored procedure are configured
+     *
+     * @return StoredProcedureParameter array with info about stored procedure parameters
+     */
+    @Override
+    public StoredProcedureParameter[] getParameters() {
+        return new StoredProcedureParameter[]{
+            // Input parameters
+            new StoredProcedureParameter("database_name", Types.VARCHAR, StoredProcedureParameter.DIRECTION_IN),
+            new StoredProcedureParameter("view_name", Types.VARCHAR, StoredProcedureParameter.DIRECTION_IN),
+            new StoredProcedureParameter("last_update_condition", Types.VARCHAR, StoredProcedureParameter.DIRECTION_IN),
+            new StoredProcedureParameter("num_elements_in_clause", Types.VARCHAR,
+                StoredProcedureParameter.DIRECTION_IN),
+            new StoredProcedureParameter("options", Types.VARCHAR, StoredProcedureParameter.DIRECTION_IN),
+            // Output parameters
+            new StoredProcedureParameter("num_updated_rows", Types.VARCHAR, StoredProcedureParameter.DIRECTION_OUT),
+            new StoredProcedureParameter("refresh_details", Types.VARCHAR, StoredProcedureParameter.DIRECTION_OUT)};
+    }
+
+    @Override
+    protected boolean hasOptions() {
+        return true;
+    }
+}
@@ -0,0 +1,211 @@
+package com.denodo.connect.incrementalcacheload.storedprocedure.util;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Process-wide admission control of the chunk queries executed by all the invocations of the procedures, so
+ * concurrent cache loads do not overload the same cache database or sources. Every chunk has to be admitted before
+ * it is executed:
+ *  - A maximum number of chunks can run at the same time against each cache data source. The waiting chunks are
+ *    admitted in round robin by view, so a view with many chunks does not delay the loads of the other views.
+ *  - Each source has a token bucket that limits the number of rows and chunks per second.
+ *
+ * The limits are read from the following Java system properties of the VDP server when a cache data source or
+ * source is used for the first time. A value lower or equal to 0 disables the limit:
+ *  - com.denodo.connect.incrementalcacheload.maxConcurrentChunksPerCache (default 0)
+ *  - com.denodo.connect.incrementalcacheload.maxRowsPerSecondPerSource (default 0)
+ *  - com.denodo.connect.incrementalcacheload.maxChunksPerSecondPerSource (default 0)
+ *
+ */
+public class AdmissionController {
+
+    private static final Logger logger = Logger.getLogger(AdmissionController.class);
+
+    private static final String PROPERTY_PREFIX = "com.denodo.connect.incrementalcacheload.";
+    public static final String MAX_CONCURRENT_CHUNKS_PER_CACHE = PROPERTY_PREFIX + "maxConcurrentChunksPerCache";
+    public static final String MAX_ROWS_PER_SECOND_PER_SOURCE = PROPERTY_PREFIX + "maxRowsPerSecondPerSource";
+    public static final String MAX_CHUNKS_PER_SECOND_PER_SOURCE = PROPERTY_PREFIX + "maxChunksPerSecondPerSource";
+
+    private static final AdmissionController INSTANCE = new AdmissionController();
+
+    private final Map<String, ConcurrencyLimiter> cacheLimiters = new ConcurrentHashMap<>();
+    private final Map<String, TokenBucket> sourceRowBuckets = new ConcurrentHashMap<>();
+    private final Map<String, TokenBucket> sourceChunkBuckets = new ConcurrentHashMap<>();
+
+    private AdmissionController() {
+    }
+
+    public static AdmissionController getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Blocks until a chunk can be executed. The returned ticket has to be released when the chunk finishes.
+     *
+     * @param cacheDataSource identifier of the cache data source the chunk writes to
+     * @param source identifier of the source the chunk reads from
+     * @param view view the chunk belongs to
+     * @param rows number of rows of the chunk
+     * @return
+     * @throws InterruptedException if the thread is interrupted while waiting. Nothing has to be released then.
+     */
+    public Ticket admit(String cacheDataSource, String source, String view, int rows) throws InterruptedException {
+
+        long start = System.nanoTime();
+
+        // Rate limits are waited before taking a concurrency slot, so a throttled source does not block the cache
+        this.sourceChunkBuckets.computeIfAbsent(source,
+            k -> new TokenBucket(Integer.getInteger(MAX_CHUNKS_PER_SECOND_PER_SOURCE, 0).intValue())).acquire(1);
+        this.sourceRowBuckets.computeIfAbsent(source,
+            k -> new TokenBucket(Integer.getInteger(MAX_ROWS_PER_SECOND_PER_SOURCE, 0).intValue())).acquire(rows);
+
+        ConcurrencyLimiter limiter = this.cacheLimiters.computeIfAbsent(cacheDataSource,
+            k -> new ConcurrencyLimiter(Integer.getInteger(MAX_CONCURRENT_CHUNKS_PER_CACHE, 0).intValue()));
+        limiter.acquire(view);
+
+        if (logger.isTraceEnabled()) {
+            logger.trace("admit(): chunk of " + view + " admitted after "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        }
+        return new Ticket(limiter);
+    }
+
+    /**
+     * Admission of a chunk. It frees its concurrency slot when it is released.
+     */
+    public static class Ticket implements AutoCloseable {
+
+        private ConcurrencyLimiter limiter;
+
+        Ticket(ConcurrencyLimiter limiter) {
+            this.limiter = limiter;
+        }
+
+        @Override
+        public void close() {
+            if (this.limiter != null) {
+                this.limiter.release();
+                this.limiter = null;
+            }
+        }
+    }
+
+    /**
+     * Limits the number of concurrent chunks. When a slot is freed it is given to the first waiting chunk of the next
+     * view, in round robin.
+     */
+    static class ConcurrencyLimiter {
+
+        private final int maxConcurrent;
+        private int available;
+        // Waiting chunks by view. The iteration order of the map is the round robin order
+        private final LinkedHashMap<String, ArrayDeque<Waiter>> waiters = new LinkedHashMap<>();
+
+        ConcurrencyLimiter(int maxConcurrent) {
+            this.maxConcurrent = maxConcurrent;
+            this.available = maxConcurrent;
+        }
+
+        synchronized void acquire(String view) throws InterruptedException {
+
+            if (this.maxConcurrent <= 0) {
+                return;
+            }
+            if (this.available > 0 && this.waiters.isEmpty()) {
+                this.available--;
+                return;
+            }
+
+            Waiter waiter = new Waiter();
+            this.waiters.computeIfAbsent(view, k -> new ArrayDeque<>()).add(waiter);
+            try {
+                while (!waiter.granted) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                if (waiter.granted) {
+                    // The slot was given to this thread at the same time it was interrupted
+                    release();
+                } else {
+                    ArrayDeque<Waiter> viewWaiters = this.waiters.get(view);
+                    viewWaiters.remove(waiter);
+                    if (viewWaiters.isEmpty()) {
+                        this.waiters.remove(view);
+                    }
+                }
+                throw e;
+            }
+        }
+
+        synchronized void release() {
+
+            if (this.maxConcurrent <= 0) {
+                return;
+            }
+
+            Iterator<Map.Entry<String, ArrayDeque<Waiter>>> it = this.waiters.entrySet().iterator();
+            if (!it.hasNext()) {
+                this.available++;
+                return;
+            }
+
+            Map.Entry<String, ArrayDeque<Waiter>> next = it.next();
+            it.remove();
+            next.getValue().poll().granted = true;
+            if (!next.getValue().isEmpty()) {
+                // The view goes to the end of the round robin
+                this.waiters.put(next.getKey(), next.getValue());
+            }
+            notifyAll();
+        }
+
+        private static class Waiter {
+            private boolean granted;
+        }
+    }
+
+    /**
+     * Token bucket with a capacity of one second of tokens. A request larger than the available tokens borrows them,
+     * so the following requests wait until the debt is paid and requests are served in arrival order.
+     */
+    static class TokenBucket {
+
+        private final double tokensPerSecond;
+        private double tokens;
+        private long lastRefill;
+
+        TokenBucket(double tokensPerSecond) {
+            this.tokensPerSecond = tokensPerSecond;
+            this.tokens = tokensPerSecond;
+            this.lastRefill = System.nanoTime();
+        }
+
+        void acquire(int requested) throws InterruptedException {
+
+            if (this.tokensPerSecond <= 0) {
+                return;
+            }
+
+            long waitNanos;
+            synchronized (this) {
+                long now = System.nanoTime();
+                this.tokens = Math.min(this.tokensPerSecond,
+                    this.tokens + (now - this.lastRefill) * this.tokensPerSecond / 1000000000.0);
+                this.lastRefill = now;
+                this.tokens -= requested;
+                waitNanos = this.tokens < 0 ? (long) (-this.tokens / this.tokensPerSecond * 1000000000.0) : 0;
+            }
+
+            if (waitNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            }
+        }
+    }
+}
@@ -0,0 +1,385 @@
+package com.denodo.connect.incrementalcacheload.storedprocedure.util;
+
+import java.nio.ByteBuffer;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.denodo.vdb.engine.storedprocedure.DatabaseEnvironment;
+import com.denodo.vdb.engine.storedprocedure.StoredProcedureException;
+
+/**
+ * Finds the rows of a view that are different in the source and in the cache. The PK values, compared as tuples in
+ * the order of the PK fields, are split in ranges and, for each range, the number of rows and an order independent
+ * checksum of their hashes are compared between the source (CONTEXT('cache'='off')) and the cache
+ * (CONTEXT('cache'='on')). Only the ranges whose checksums do not match are split again, until they are small enough
+ * to compare their rows one by one. The number of rows is obtained with an aggregation query, and the rows are only
+ * read to calculate the checksum in ranges with up to MAX_COMPARED_ROWS rows: larger ranges are split without
+ * reading them.
+ *
+ */
+public class CacheDriftDetector {
+
+    private static final Logger logger = Logger.getLogger(CacheDriftDetector.class);
+
+    // Number of subranges a mismatching range is split into
+    private static final int FANOUT = 16;
+    // Maximum number of rows of a range that cannot be split (rows with NULL or repeated PK values) compared in memory
+    private static final int MAX_COMPARED_ROWS = 100000;
+
+    private final DatabaseEnvironment environment;
+    private final InputParametersVO inputParameters;
+    private final List<String> pkFields;
+    private int checkedRanges;
+
+    public CacheDriftDetector(DatabaseEnvironment environment, InputParametersVO inputParameters,
+        List<String> pkFields) {
+        this.environment = environment;
+        this.inputParameters = inputParameters;
+        this.pkFields = pkFields;
+    }
+
+    /**
+     * Returns the PK values of the rows that are different in the source and in the cache, or that are missing in one
+     * of them. Ranges with up to 'num_elements_in_clause' rows are compared row by row.
+     *
+     * @return PK values, one array per row
+     * @throws StoredProcedureException
+     */
+    public List<Object[]> findDivergentKeys() throws StoredProcedureException {
+
+        List<Object[]> divergentKeys = new ArrayList<>();
+        Deque<KeyRange> pendingRanges = new ArrayDeque<>();
+        pendingRanges.push(new KeyRange(null, null, true));
+
+        while (!pendingRanges.isEmpty()) {
+
+            KeyRange range = pendingRanges.pop();
+            RangeChecksum source = getRowCounts(range, false);
+            RangeChecksum cache = getRowCounts(range, true);
+            this.checkedRanges++;
+
+            if (source.count == cache.count && source.count <= MAX_COMPARED_ROWS) {
+                if (source.count == 0) {
+                    continue;
+                }
+                addHashSum(range, false, source);
+                addHashSum(range, true, cache);
+                if (source.matches(cache)) {
+                    continue;
+                }
+            }
+            logger.debug("findDivergentKeys(): range " + range + " does not match or is too large to be compared. "
+                + "Source rows: " + source.count + ", cache rows: " + cache.count);
+
+            List<KeyRange> subRanges = new ArrayList<>();
+            long rows = Math.max(source.count, cache.count);
+            if (rows > this.inputParameters.getNumElementsInClause().intValue()) {
+                // Boundaries are taken from the side with more rows, so both sides are split in similar ranges
+                RangeChecksum larger = cache.count > source.count ? cache : source;
+                subRanges = split(range, larger == cache, larger.keyedCount);
+            }
+
+            if (subRanges.size() < 2) {
+                if (rows > MAX_COMPARED_ROWS) {
+                    throw new StoredProcedureException("Range " + range + " has " + rows + " rows with NULL or "
+                        + "repeated PK values that cannot be split in smaller ranges. Up to " + MAX_COMPARED_ROWS
+                        + " rows are compared in memory.");
+                }
+                divergentKeys.addAll(getDivergentKeys(range));
+            } else {
+                for (KeyRange subRange : subRanges) {
+                    pendingRanges.push(subRange);
+                }
+            }
+        }
+
+        logger.debug("findDivergentKeys(): checked ranges = " + this.checkedRanges + ", divergent rows = "
+            + divergentKeys.size());
+        return divergentKeys;
+    }
+
+    public int getCheckedRanges() {
+        return this.checkedRanges;
+    }
+
+    private RangeChecksum getRowCounts(KeyRange range, boolean cacheOn) throws StoredProcedureException {
+
+        List<String> keyedConditions = new ArrayList<>();
+        for (String pkField : this.pkFields) {
+            keyedConditions.add(pkField + " IS NOT NULL");
+        }
+        List<Object> parameters = new ArrayList<>();
+        String query = "SELECT COUNT(*), SUM(CASE WHEN " + Utils.join(keyedConditions, " AND ")
+            + " THEN 1 ELSE 0 END) FROM " + getViewName() + getWhereClause(range, range.includeNulls, parameters)
+            + getContext(cacheOn);
+
+        RangeChecksum checksum = new RangeChecksum();
+        ResultSet rs = null;
+        try {
+            rs = this.environment.executeQuery(query, parameters.toArray());
+            if (rs.next()) {
+                checksum.count = rs.getLong(1);
+                // SUM is NULL when the range is empty
+                checksum.keyedCount = rs.getLong(2);
+            }
+        } catch (SQLException e) {
+            logger.debug("ERROR in getRowCounts(): ", e);
+            throw new StoredProcedureException("ERROR counting rows of range " + range + ": " + e.getMessage(), e);
+        } finally {
+            DBUtils.closeRs(rs);
+        }
+
+        return checksum;
+    }
+
+    private void addHashSum(KeyRange range, boolean cacheOn, RangeChecksum checksum) throws StoredProcedureException {
+
+        List<Object> parameters = new ArrayList<>();
+        String query = "SELECT * FROM " + getViewName() + getWhereClause(range, range.includeNulls, parameters)
+            + getContext(cacheOn);
+
+        ResultSet rs = null;
+        try {
+            rs = this.environment.executeQuery(query, parameters.toArray());
+            int columnCount = rs.getMetaData().getColumnCount();
+            while (rs.next()) {
+                // The sum of the row hashes does not depend on the order of the rows
+                checksum.hashSum += ByteBuffer.wrap(RowHasher.hash(rs, columnCount)).getLong();
+            }
+        } catch (SQLException e) {
+            logger.debug("ERROR in addHashSum(): ", e);
+            throw new StoredProcedureException("ERROR calculating checksum of range " + range + ": " + e.getMessage(),
+                e);
+        } finally {
+            DBUtils.closeRs(rs);
+        }
+    }
+
+    /**
+     * Splits a range in up to FANOUT subranges with a similar number of PK values, taking the boundaries from the
+     * sorted PK values of the source or the cache.
+     *
+     * @param keyedRows rows of the range without NULL PK values, used to estimate the distinct PK values
+     */
+    private List<KeyRange> split(KeyRange range, boolean cacheOn, long keyedRows) throws StoredProcedureException {
+
+        List<Object> parameters = new ArrayList<>();
+        String pkList = Utils.join(this.pkFields, ", ");
+        String query = "SELECT DISTINCT " + pkList + " FROM " + getViewName()
+            + getWhereClause(range, false, parameters) + " ORDER BY " + pkList + getContext(cacheOn);
+
+        long step = Math.max(1, keyedRows / FANOUT);
+        BoundarySample sample = sampleBoundaries(range, query, parameters, step);
+        if (sample.distinctValues >= 0 && sample.boundaries.size() < FANOUT - 1
+            && Math.max(1, sample.distinctValues / FANOUT) < step) {
+            // Repeated PK values made the estimate too high, so the boundaries are taken again with the exact count
+            sample = sampleBoundaries(range, query, parameters, Math.max(1, sample.distinctValues / FANOUT));
+        }
+
+        List<KeyRange> subRanges = new ArrayList<>();
+        Object[] lower = range.lower;
+        boolean includeNulls = range.includeNulls;
+        for (Object[] boundary : sample.boundaries) {
+            subRanges.add(new KeyRange(lower, boundary, includeNulls));
+            lower = boundary;
+            includeNulls = false;
+        }
+        subRanges.add(new KeyRange(lower, range.upper, includeNulls));
+
+        return subRanges;
+    }
+
+    private BoundarySample sampleBoundaries(KeyRange range, String query, List<Object> parameters, long step)
+        throws StoredProcedureException {
+
+        BoundarySample sample = new BoundarySample();
+        ResultSet rs = null;
+        try {
+            rs = this.environment.executeQuery(query, parameters.toArray());
+            long i = 0;
+            while (sample.boundaries.size() < FANOUT - 1) {
+                if (!rs.next()) {
+                    sample.distinctValues = i;
+                    break;
+                }
+                if (i > 0 && i % step == 0) {
+                    Object[] boundary = new Object[this.pkFields.size()];
+                    for (int j = 0; j < boundary.length; j++) {
+                        boundary[j] = rs.getObject(j + 1);
+                    }
+                    sample.boundaries.add(boundary);
+                }
+                i++;
+            }
+        } catch (SQLException e) {
+            logger.debug("ERROR in split(): ", e);
+            throw new StoredProcedureException("ERROR splitting range " + range + ": " + e.getMessage(), e);
+        } finally {
+            DBUtils.closeRs(rs);
+        }
+        return sample;
+    }
+
+    private List<Object[]> getDivergentKeys(KeyRange range) throws StoredProcedureException {
+
+        Map<List<Object>, Object[]> keys = new LinkedHashMap<>();
+        Map<List<Object>, byte[]> sourceHashes = getRowHashes(range, false, keys);
+        Map<List<Object>, byte[]> cacheHashes = getRowHashes(range, true, keys);
+
+        List<Object[]> divergentKeys = new ArrayList<>();
+        for (Map.Entry<List<Object>, Object[]> key : keys.entrySet()) {
+            if (!RowHasher.sameHash(sourceHashes.get(key.getKey()), cacheHashes.get(key.getKey()))) {
+                divergentKeys.add(key.getValue());
+            }
+        }
+        return divergentKeys;
+    }
+
+    private Map<List<Object>, byte[]> getRowHashes(KeyRange range, boolean cacheOn, Map<List<Object>, Object[]> keys)
+        throws StoredProcedureException {
+
+        List<Object> parameters = new ArrayList<>();
+        String query = "SELECT * FROM " + getViewName() + getWhereClause(range, range.includeNulls, parameters)
+            + getContext(cacheOn);
+
+        Map<List<Object>, byte[]> hashes = new HashMap<>();
+        ResultSet rs = null;
+        try {
+            rs = this.environment.executeQuery(query, parameters.toArray());
+            int columnCount = rs.getMetaData().getColumnCount();
+            int[] pkIndexes = RowHasher.getPkColumnIndexes(rs.getMetaData(), this.pkFields);
+            while (rs.next()) {
+                List<Object> key = RowHasher.getKey(rs, pkIndexes);
+                RowHasher.putHash(hashes, key, RowHasher.hash(rs, columnCount));
+                if (!keys.containsKey(key)) {
+                    keys.put(key, getKeyValues(rs, pkIndexes));
+                }
+            }
+        } catch (SQLException e) {
+            logger.debug("ERROR in getRowHashes(): ", e);
+            throw new StoredProcedureException("ERROR comparing rows of range " + range + ": " + e.getMessage(), e);
+        } finally {
+            DBUtils.closeRs(rs);
+        }
+
+        return hashes;
+    }
+
+    private Object[] getKeyValues(ResultSet rs, int[] pkIndexes) throws SQLException {
+        Object[] key = new Object[pkIndexes.length];
+        for (int i = 0; i < pkIndexes.length; i++) {
+            key[i] = rs.getObject(pkIndexes[i]);
+        }
+        if (key.length == 1 && key[0] == null) {
+            // Same as the keys obtained by the incremental cache load
+            key[0] = "";
+        }
+        return key;
+    }
+
+    /**
+     * Condition of the rows of a range. The PK values are compared as tuples, e.g. (a, b) >= (?, ?) is written as
+     * "a > ? OR (a = ? AND b >= ?)", as the sources do not support row value comparisons.
+     *
+     * @param includeNulls true if the rows with a NULL PK value are included
+     */
+    private String getWhereClause(KeyRange range, boolean includeNulls, List<Object> parameters) {
+
+        List<String> conditions = new ArrayList<>();
+        List<String> nullConditions = new ArrayList<>();
+        for (String pkField : this.pkFields) {
+            conditions.add(pkField + " IS NOT NULL");
+            nullConditions.add(pkField + " IS NULL");
+        }
+        if (range.lower != null) {
+            conditions.add(getTupleCondition(range.lower, ">", ">=", parameters));
+        }
+        if (range.upper != null) {
+            conditions.add(getTupleCondition(range.upper, "<", "<", parameters));
+        }
+
+        String keyedCondition = Utils.join(conditions, " AND ");
+        if (!includeNulls) {
+            return " WHERE " + keyedCondition;
+        }
+        return range.lower == null && range.upper == null ? ""
+            : " WHERE (" + Utils.join(nullConditions, " OR ") + " OR (" + keyedCondition + "))";
+    }
+
+    private String getTupleCondition(Object[] bound, String operator, String lastOperator, List<Object> parameters) {
+
+        List<String> alternatives = new ArrayList<>();
+        for (int i = 0; i < bound.length; i++) {
+            StringBuilder alternative = new StringBuilder("(");
+            for (int j = 0; j < i; j++) {
+                alternative.append(this.pkFields.get(j)).append(" = ? AND ");
+                parameters.add(bound[j]);
+            }
+            alternative.append(this.pkFields.get(i)).append(" ")
+                .append(i == bound.length - 1 ? lastOperator : operator).append(" ?)");
+            parameters.add(bound[i]);
+            alternatives.add(alternative.toString());
+        }
+        return "(" + Utils.join(alternatives, " OR ") + ")";
+    }
+
+    private String getViewName() {
+        return this.inputParameters.getDatabaseName() + "." + this.inputParameters.getViewName();
+    }
+
+    private static String getContext(boolean cacheOn) {
+        return " CONTEXT('cache'='" + (cacheOn ? "on" : "off") + "')";
+    }
+
+    /**
+     * Range of PK values: [lower, upper). Null bounds mean the range is not bounded
+     */
+    private static class KeyRange {
+
+        private final Object[] lower;
+        private final Object[] upper;
+        // Rows with a null value in any PK field belong to the first range
+        private final boolean includeNulls;
+
+        KeyRange(Object[] lower, Object[] upper, boolean includeNulls) {
+            this.lower = lower;
+            this.upper = upper;
+            this.includeNulls = includeNulls;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + (this.lower == null ? "-" : Arrays.toString(this.lower)) + ", "
+                + (this.upper == null ? "-" : Arrays.toString(this.upper)) + ")";
+        }
+    }
+
+    private static class RangeChecksum {
+
+        private long count;
+        // Rows without NULL PK values
+        private long keyedCount;
+        private long hashSum;
+
+        boolean matches(RangeChecksum other) {
+            return this.count == other.count && this.hashSum == other.hashSum;
+        }
+    }
+
+    private static class BoundarySample {
+
+        private final List<Object[]> boundaries = new ArrayList<>();
+        // Distinct PK values of the range if all of them were read, -1 otherwise
+        private long distinctValues = -1;
+    }
+}
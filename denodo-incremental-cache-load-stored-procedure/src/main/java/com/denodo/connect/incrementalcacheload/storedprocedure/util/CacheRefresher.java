@@ -0,0 +1,466 @@
+package com.denodo.connect.incrementalcacheload.storedprocedure.util;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.log4j.Logger;
+
+import com.denodo.vdb.engine.storedprocedure.DatabaseEnvironment;
+import com.denodo.vdb.engine.storedprocedure.StoredProcedureException;
+
+/**
+ * Executes the chunk queries that load the rows of a view into the cache
+ *
+ */
+public class CacheRefresher {
+
+    private static final Logger logger = Logger.getLogger(CacheRefresher.class);
+
+    // Time the running queries have to finish after the load is cancelled
+    private static final long CANCEL_TIMEOUT_SECONDS = 10;
+
+    private final DatabaseEnvironment environment;
+    private final InputParametersVO inputParameters;
+    private final List<String> pkFields;
+    private final String cacheDataSource;
+    // Latency of each executed chunk, in milliseconds
+    private final List<Long> chunkLatencies = Collections.synchronizedList(new ArrayList<Long>());
+    private final AtomicInteger failedChunks = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicInteger coalesced = new AtomicInteger();
+    private final Set<Integer> committedChunks = new ConcurrentSkipListSet<>();
+    // Chunks whose refresh has started and not finished
+    private final Set<Integer> runningChunks = new ConcurrentSkipListSet<>();
+    // Cursors of the queries being executed, closed to cancel them. A query is only added once executeQuery returns,
+    // as the procedure API has no handle to cancel a call in progress
+    private final Set<ResultSet> runningQueries = ConcurrentHashMap.newKeySet();
+    // Set when a query fails or the load is cancelled, so no more queries are executed
+    private volatile boolean cancelled;
+    // System.nanoTime() when the refresh started. All the PK values to refresh had been read from the source before
+    private volatile long observedAt;
+
+    /**
+     * @param environment
+     * @param inputParameters
+     * @param pkFields
+     * @param cacheDataSource identifier of the cache data source, used by the admission control
+     */
+    public CacheRefresher(DatabaseEnvironment environment, InputParametersVO inputParameters, List<String> pkFields,
+        String cacheDataSource) {
+        this.environment = environment;
+        this.inputParameters = inputParameters;
+        this.pkFields = pkFields;
+        this.cacheDataSource = cacheDataSource;
+    }
+
+    /**
+     * Executes the cache update queries, one after another in the thread of the procedure or, if 'concurrency' is
+     * greater than 1, up to 'concurrency' at the same time in worker threads. If the thread of the procedure is
+     * interrupted, the pending queries are not executed and the cursors of the running ones are closed.
+     *
+     * @param queryList
+     * @return number of PK values updated in cache
+     * @throws IncrementalCacheLoadStoreProcedureException if a query fails or the load is cancelled. It contains the
+     * number of PK values updated in cache before the error and the chunks committed
+     */
+    public int refresh(List<QueryParameters> queryList) throws StoredProcedureException {
+
+        UnchangedRowsFilter unchangedRowsFilter = this.inputParameters.isSkipUnchangedRows()
+            ? new UnchangedRowsFilter(this.environment, this.inputParameters, this.pkFields) : null;
+        Integer concurrency = this.inputParameters.getConcurrency();
+        this.observedAt = System.nanoTime();
+
+        int updated;
+        if (queryList.isEmpty()) {
+            updated = 0;
+        } else if (concurrency != null && concurrency.intValue() > 1) {
+            updated = refreshChunksConcurrently(queryList, concurrency.intValue(), unchangedRowsFilter);
+        } else {
+            updated = refreshChunks(queryList, unchangedRowsFilter);
+        }
+
+        if (unchangedRowsFilter != null) {
+            logger.debug("Rows skipped because they are unchanged in cache: " + this.skipped.get());
+        }
+        if (this.coalesced.get() > 0) {
+            logger.debug("Rows refreshed by other loads of the view in flight: " + this.coalesced.get());
+        }
+        return updated;
+    }
+
+    /**
+     * Latency of each executed chunk, in milliseconds
+     *
+     * @return
+     */
+    public List<Long> getChunkLatencies() {
+        synchronized (this.chunkLatencies) {
+            return new ArrayList<>(this.chunkLatencies);
+        }
+    }
+
+    public int getFailedChunks() {
+        return this.failedChunks.get();
+    }
+
+    /**
+     * Number (starting at 1) of the chunks whose refresh has finished successfully
+     *
+     * @return
+     */
+    public List<Integer> getCommittedChunks() {
+        return new ArrayList<>(this.committedChunks);
+    }
+
+    /**
+     * Executes the cache update queries one after another. The interruption of the thread is checked between chunks.
+     */
+    private int refreshChunks(List<QueryParameters> queryList, UnchangedRowsFilter unchangedRowsFilter)
+        throws StoredProcedureException {
+
+        int updated = 0;
+        int index = 1;
+        for (QueryParameters q : queryList) {
+            if (Thread.interrupted()) {
+                // The load has been cancelled. No query is running between chunks
+                this.cancelled = true;
+                throw cancelError(new InterruptedException(), updated, queryList.size(),
+                    Collections.<Integer>emptySet());
+            }
+            try {
+                updated = updated + refreshChunk(q, index, unchangedRowsFilter);
+                this.committedChunks.add(Integer.valueOf(index));
+            } catch (InterruptedException e) {
+                this.cancelled = true;
+                throw cancelError(e, updated, queryList.size(), Collections.<Integer>emptySet());
+            } catch (SQLException | StoredProcedureException e) {
+                if (isCancelled()) {
+                    throw cancelError(e, updated, queryList.size(), Collections.<Integer>emptySet());
+                }
+                throw chunkError(e, updated, queryList.size(), Collections.<Integer>emptySet());
+            }
+            index++;
+        }
+        return updated;
+    }
+
+    /**
+     * Executes the cache update queries in a pool of 'concurrency' threads. If a query fails or the thread of the
+     * procedure is interrupted, the pending queries are not executed and the running ones are cancelled closing their
+     * cursors. The threads of the pool are not interrupted, so no call to VDP is interrupted: a query whose
+     * executeQuery call has not returned yet is not cancelled, and its chunk is reported as in doubt if it does not
+     * finish in CANCEL_TIMEOUT_SECONDS.
+     */
+    private int refreshChunksConcurrently(List<QueryParameters> queryList, int concurrency,
+        UnchangedRowsFilter unchangedRowsFilter) throws StoredProcedureException {
+
+        AtomicInteger updated = new AtomicInteger();
+        // Error of the first failed query. The queries stopped because of it fail too, and may finish before it
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(concurrency, queryList.size()));
+        CompletionService<QueryParameters> completionService = new ExecutorCompletionService<>(executor);
+        try {
+            int i = 1;
+            for (QueryParameters q : queryList) {
+                final Integer index = Integer.valueOf(i++);
+                completionService.submit(() -> {
+                    if (this.cancelled) {
+                        return q;
+                    }
+                    this.runningChunks.add(index);
+                    try {
+                        updated.addAndGet(refreshChunk(q, index.intValue(), unchangedRowsFilter));
+                        this.committedChunks.add(index);
+                        return q;
+                    } catch (Exception e) {
+                        if (!isCancelled()) {
+                            failure.compareAndSet(null, e);
+                        }
+                        this.cancelled = true;
+                        throw e;
+                    } finally {
+                        this.runningChunks.remove(index);
+                    }
+                });
+            }
+
+            for (int n = 0; n < queryList.size(); n++) {
+                try {
+                    completionService.take().get();
+                } catch (ExecutionException e) {
+                    Set<Integer> inDoubt = stop(executor);
+                    throw chunkError(failure.get() != null ? failure.get() : e.getCause(), updated.get(),
+                        queryList.size(), inDoubt);
+                }
+            }
+            return updated.get();
+
+        } catch (InterruptedException e) {
+            // The load has been cancelled
+            Set<Integer> inDoubt = stop(executor);
+            throw cancelError(e, updated.get(), queryList.size(), inDoubt);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Cancels the running queries and waits for them up to CANCEL_TIMEOUT_SECONDS
+     *
+     * @return chunks still running after the wait, whose result is unknown
+     */
+    private Set<Integer> stop(ExecutorService executor) {
+
+        this.cancelled = true;
+        executor.shutdown();
+        cancelRunningQueries();
+        try {
+            if (executor.awaitTermination(CANCEL_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                return Collections.emptySet();
+            }
+        } catch (InterruptedException e) {
+            // The procedure has been cancelled while waiting, the running chunks are reported as in doubt
+            Thread.currentThread().interrupt();
+        }
+        return new TreeSet<>(this.runningChunks);
+    }
+
+    private boolean isCancelled() {
+        return this.cancelled || Thread.currentThread().isInterrupted();
+    }
+
+    private int refreshChunk(QueryParameters query, int index, UnchangedRowsFilter unchangedRowsFilter)
+        throws SQLException, StoredProcedureException, InterruptedException {
+
+        // The VDP database is used as the source of the view for the rate limits
+        String source = this.inputParameters.getDatabaseName().replace("\"", "");
+        String view = source + "." + this.inputParameters.getViewName().replace("\"", "");
+        String inFlightKeys = this.inputParameters.getInFlightKeys();
+        boolean inFlightCheck = query.getKeys() != null && !query.isPkRange()
+            && (InFlightKeyRegistry.POLICY_WAIT.equals(inFlightKeys)
+                || InFlightKeyRegistry.POLICY_COALESCE.equals(inFlightKeys));
+
+        QueryParameters q;
+        AdmissionController.Ticket ticket = null;
+        try {
+            ticket = AdmissionController.getInstance().admit(this.cacheDataSource, source, view, query.getChunkSize());
+            q = filterUnchangedRows(query, index, unchangedRowsFilter);
+            if (q == null) {
+                return 0;
+            }
+            if (!inFlightCheck) {
+                execute(q, index);
+                // Count of the updated PKs of this chunk
+                return q.getChunkSize();
+            }
+        } finally {
+            if (ticket != null) {
+                ticket.close();
+            }
+        }
+
+        // The chunk may wait for other loads, so it is admitted again only to refresh the PK values it owns
+        return refreshKeys(q.getKeys(), index, source, view, InFlightKeyRegistry.POLICY_COALESCE.equals(inFlightKeys));
+    }
+
+    /**
+     * Removes from the chunk the rows that are equal in the source and in the cache
+     *
+     * @return query of the changed rows, or null if there are none
+     */
+    private QueryParameters filterUnchangedRows(QueryParameters q, int index, UnchangedRowsFilter unchangedRowsFilter)
+        throws StoredProcedureException {
+
+        if (unchangedRowsFilter == null || q.getKeys() == null || q.isPkRange()) {
+            return q;
+        }
+        // Only the rows that are different in the source and in the cache are refreshed
+        List<Object[]> changedKeys = unchangedRowsFilter.getChangedKeys(q.getKeys());
+        this.skipped.addAndGet(q.getChunkSize() - changedKeys.size());
+        if (changedKeys.isEmpty()) {
+            logger.trace("Query " + index + "\t: skipped, no changed rows.");
+            return null;
+        }
+        return RefreshQueryBuilder.buildRefreshQuery(this.inputParameters, this.pkFields, changedKeys);
+    }
+
+    /**
+     * Refreshes PK values that may be in flight in other loads of the view. The values claimed by this load are
+     * refreshed first and then the ones of other loads are waited for, so loads never wait for each other. The
+     * admission ticket is only held while the claimed values are refreshed, never while waiting for other loads.
+     *
+     * @return number of PK values updated in cache, by this load or by the coalesced refreshes of other loads
+     */
+    private int refreshKeys(List<Object[]> keys, int index, String source, String view, boolean coalesce)
+        throws SQLException, StoredProcedureException, InterruptedException {
+
+        InFlightKeyRegistry registry = InFlightKeyRegistry.getInstance();
+        String viewKey = InFlightKeyRegistry.getViewKey(this.inputParameters.getDatabaseName(),
+            this.inputParameters.getViewName());
+        int updated = 0;
+        List<Object[]> pending = keys;
+        while (!pending.isEmpty()) {
+
+            List<Object[]> retry = new ArrayList<>();
+            InFlightKeyRegistry.Claim claim = registry.claim(viewKey, pending, this.observedAt, coalesce);
+            try {
+                if (!claim.getOwnedKeys().isEmpty()) {
+                    QueryParameters q = RefreshQueryBuilder.buildRefreshQuery(this.inputParameters, this.pkFields,
+                        claim.getOwnedKeys());
+                    AdmissionController.Ticket ticket = AdmissionController.getInstance().admit(this.cacheDataSource,
+                        source, view, q.getChunkSize());
+                    try {
+                        execute(q, index);
+                    } finally {
+                        ticket.close();
+                    }
+                    claim.complete(true);
+                    updated = updated + q.getChunkSize();
+                }
+            } finally {
+                claim.close();
+            }
+
+            for (Map.Entry<InFlightKeyRegistry.Refresh, List<Object[]>> coalesced
+                : claim.getCoalescedKeys().entrySet()) {
+                if (coalesced.getKey().await()) {
+                    updated = updated + coalesced.getValue().size();
+                    this.coalesced.addAndGet(coalesced.getValue().size());
+                } else {
+                    // The other load failed, so the PK values have to be refreshed again
+                    retry.addAll(coalesced.getValue());
+                }
+            }
+            for (Map.Entry<InFlightKeyRegistry.Refresh, List<Object[]>> blocked : claim.getBlockedKeys().entrySet()) {
+                blocked.getKey().await();
+                retry.addAll(blocked.getValue());
+            }
+            if (!retry.isEmpty()) {
+                logger.trace("Query " + index + "\t: " + retry.size() + " PK values in flight in other loads claimed "
+                    + "again.");
+            }
+            pending = retry;
+        }
+
+        return updated;
+    }
+
+    private void execute(QueryParameters q, int index) throws SQLException, StoredProcedureException {
+
+        if (this.cancelled) {
+            throw new StoredProcedureException("Query " + index + " not executed: the load has been stopped.");
+        }
+        ResultSet aux = null;
+        try {
+            long iniCache = System.nanoTime();
+            aux = this.environment.executeQuery(q.getQuery(), q.getParameters());
+            this.runningQueries.add(aux);
+            aux.next();
+            long finCache = System.nanoTime();
+            this.chunkLatencies.add(Long.valueOf((finCache - iniCache) / 1000000));
+            double seconds = (finCache - iniCache) / 1000000000.0;
+            logger.trace("Query " + index + "\t: " + seconds + " seconds.");
+        } catch (SQLException | StoredProcedureException e) {
+            if (isCancelled()) {
+                // Queries closed by a cancellation are neither committed nor failed
+                logger.debug("Query " + index + "\t: cancelled.");
+                throw e;
+            }
+            this.failedChunks.incrementAndGet();
+            logger.debug("ERROR in refresh(): Query - " + q.getQuery() + ". ", e);
+            throw e;
+        } finally {
+            if (aux != null) {
+                this.runningQueries.remove(aux);
+            }
+            DBUtils.closeRs(aux);
+        }
+    }
+
+    private IncrementalCacheLoadStoreProcedureException chunkError(Throwable e, int updated, int chunks,
+        Set<Integer> inDoubt) {
+
+        return new IncrementalCacheLoadStoreProcedureException(
+            "ERROR executing query update of cache [Rows updated in cache: " + updated + "]. "
+                + describeChunks(chunks, inDoubt), e, updated, getCommittedChunks());
+    }
+
+    private IncrementalCacheLoadStoreProcedureException cancelError(Throwable e, int updated, int chunks,
+        Set<Integer> inDoubt) {
+
+        Thread.currentThread().interrupt();
+        return new IncrementalCacheLoadStoreProcedureException("Cancelled query update of cache [Rows updated in "
+            + "cache: " + updated + "]. " + describeChunks(chunks, inDoubt), e, updated, getCommittedChunks());
+    }
+
+    /**
+     * Closes the cursors of the running queries, which cancels them in VDP. Only the fetch of the queries whose
+     * executeQuery call has returned is cancelled
+     */
+    private void cancelRunningQueries() {
+        for (ResultSet rs : this.runningQueries) {
+            DBUtils.closeRs(rs);
+        }
+    }
+
+    // e.g. "Committed chunks: 1-5, 7 of 20. Chunks in doubt: 6, 8."
+    private String describeChunks(int chunks, Set<Integer> inDoubt) {
+
+        String description = "Committed chunks: " + describeRanges(this.committedChunks) + " of " + chunks + ".";
+        if (!inDoubt.isEmpty()) {
+            description = description + " Chunks in doubt: " + describeRanges(inDoubt) + ".";
+        }
+        return description;
+    }
+
+    // e.g. "1-5, 7", for sorted chunk numbers
+    static String describeRanges(Set<Integer> chunks) {
+
+        StringBuilder description = new StringBuilder();
+        Integer first = null;
+        Integer last = null;
+        for (Integer chunk : chunks) {
+            if (last != null && chunk.intValue() == last.intValue() + 1) {
+                last = chunk;
+                continue;
+            }
+            appendRange(description, first, last);
+            first = chunk;
+            last = chunk;
+        }
+        appendRange(description, first, last);
+        if (first == null) {
+            description.append("none");
+        }
+        return description.toString();
+    }
+
+    private static void appendRange(StringBuilder description, Integer first, Integer last) {
+        if (first == null) {
+            return;
+        }
+        if (description.length() > 0) {
+            description.append(", ");
+        }
+        description.append(first);
+        if (last.intValue() != first.intValue()) {
+            description.append("-").append(last);
+        }
+    }
+}
@@ -0,0 +1,371 @@
+package com.denodo.connect.incrementalcacheload.storedprocedure.util;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Work table of the cache database where the chunks of a cluster-wide load are registered, so the VDP servers that
+ * share the cache database can refresh them at the same time. Each chunk is a range of sequence numbers of the
+ * staging table. A server claims a chunk by taking a lease that expires after some time, so the chunks of a server
+ * that dies are claimed again by the other servers. The owner renews the lease while the chunk is refreshed.
+ *
+ * Lease expirations are calculated and checked by the cache database with its CURRENT_TIMESTAMP, so the clocks of the
+ * servers do not need to be synchronized.
+ *
+ * The work table has to be created in the cache database with these columns:
+ *   run_id (text, 36 characters), chunk_no (integer), database_name (text), view_name (text), seq_from (integer),
+ *   seq_to (integer), status (text, 10 characters), owner (text, 128 characters), lease_expiration (timestamp),
+ *   attempts (integer), with PRIMARY KEY (run_id, chunk_no)
+ *
+ * Only standard SQL is used, as it needs to work in every database that could be configured as cache. Claims are
+ * done with a conditional UPDATE, so two servers can never own the same chunk lease.
+ *
+ */
+public class ChunkLeaseTable {
+
+    public static final String STATUS_PENDING = "PENDING";
+    public static final String STATUS_CLAIMED = "CLAIMED";
+    public static final String STATUS_DONE = "DONE";
+    public static final String STATUS_FAILED = "FAILED";
+
+    // A chunk that fails this number of times is not claimed again
+    private static final int MAX_ATTEMPTS = 3;
+    // Candidate chunks read each time a claim is attempted
+    private static final int MAX_CANDIDATES = 20;
+    // Pending chunks, or claimed chunks whose lease has expired and can be attempted again
+    private static final String CLAIMABLE_CONDITION =
+        "(status = ? OR (status = ? AND lease_expiration < CURRENT_TIMESTAMP AND attempts < ?))";
+
+    private final String tableName;
+
+    public ChunkLeaseTable(String tableName) {
+        this.tableName = tableName;
+    }
+
+    /**
+     * Registers the chunks of a load as pending
+     *
+     * @param connection
+     * @param runId
+     * @param databaseName
+     * @param viewName
+     * @param seqRanges [seq_from, seq_to) of each chunk
+     * @throws SQLException
+     */
+    public void registerChunks(Connection connection, String runId, String databaseName, String viewName,
+        List<int[]> seqRanges) throws SQLException {
+
+        PreparedStatement ps = null;
+        try {
+            ps = connection.prepareStatement("INSERT INTO " + this.tableName + " (run_id, chunk_no, database_name, "
+                + "view_name, seq_from, seq_to, status, owner, lease_expiration, attempts) "
+                + "VALUES (?, ?, ?, ?, ?, ?, ?, NULL, NULL, 0)");
+            for (int i = 0; i < seqRanges.size(); i++) {
+                ps.setString(1, runId);
+                ps.setInt(2, i);
+                ps.setString(3, databaseName);
+                ps.setString(4, viewName);
+                ps.setInt(5, seqRanges.get(i)[0]);
+                ps.setInt(6, seqRanges.get(i)[1]);
+                ps.setString(7, STATUS_PENDING);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+            commit(connection);
+        } finally {
+            DBUtils.closePs(ps);
+        }
+    }
+
+    /**
+     * Claims a pending chunk, or a chunk whose lease has expired, of the given view
+     *
+     * @param connection
+     * @param runId if not null, only chunks of this load are claimed
+     * @param databaseName
+     * @param viewName
+     * @param owner identifier of the claiming server
+     * @param leaseMillis duration of the lease
+     * @return the claimed chunk or null if there are no chunks to claim
+     * @throws SQLException
+     */
+    public Chunk claim(Connection connection, String runId, String databaseName, String viewName, String owner,
+        long leaseMillis) throws SQLException {
+
+        List<Chunk> candidates = new ArrayList<>();
+
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            ps = connection.prepareStatement("SELECT run_id, chunk_no, seq_from, seq_to FROM "
+                + this.tableName + " WHERE database_name = ? AND view_name = ?"
+                + (runId != null ? " AND run_id = ?" : "") + " AND " + CLAIMABLE_CONDITION
+                + " ORDER BY run_id, chunk_no");
+            int i = 1;
+            ps.setString(i++, databaseName);
+            ps.setString(i++, viewName);
+            if (runId != null) {
+                ps.setString(i++, runId);
+            }
+            ps.setString(i++, STATUS_PENDING);
+            ps.setString(i++, STATUS_CLAIMED);
+            ps.setInt(i++, MAX_ATTEMPTS);
+            ps.setMaxRows(MAX_CANDIDATES);
+            rs = ps.executeQuery();
+            while (rs.next()) {
+                candidates.add(new Chunk(rs.getString(1), rs.getInt(2), rs.getInt(3), rs.getInt(4)));
+            }
+        } finally {
+            DBUtils.closeRs(rs);
+            DBUtils.closePs(ps);
+        }
+
+        for (Chunk candidate : candidates) {
+            // Another server may have claimed the chunk after it was read, so the condition is checked again
+            if (update(connection, candidate, "status = ?, owner = ?, lease_expiration = "
+                + getLeaseExpiration(leaseMillis) + ", attempts = attempts + 1", new Object[]{STATUS_CLAIMED, owner},
+                CLAIMABLE_CONDITION,
+                new Object[]{STATUS_PENDING, STATUS_CLAIMED, Integer.valueOf(MAX_ATTEMPTS)})) {
+                return candidate;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Extends the lease of a chunk that is being refreshed
+     *
+     * @param connection
+     * @param chunk
+     * @param owner
+     * @param leaseMillis duration of the lease from now
+     * @return false if the lease has been lost, i.e. it expired and another server has claimed the chunk
+     * @throws SQLException
+     */
+    public boolean renew(Connection connection, Chunk chunk, String owner, long leaseMillis) throws SQLException {
+        return update(connection, chunk, "lease_expiration = " + getLeaseExpiration(leaseMillis), new Object[0],
+            "status = ? AND owner = ?", new Object[]{STATUS_CLAIMED, owner});
+    }
+
+    /**
+     * Marks a chunk as done. It is ignored if the lease of the owner has expired and another server has claimed it.
+     *
+     * @param connection
+     * @param chunk
+     * @param owner
+     * @return true if the chunk was marked as done
+     * @throws SQLException
+     */
+    public boolean complete(Connection connection, Chunk chunk, String owner) throws SQLException {
+        return update(connection, chunk, "status = ?", new Object[]{STATUS_DONE},
+            "status = ? AND owner = ?", new Object[]{STATUS_CLAIMED, owner});
+    }
+
+    /**
+     * Releases a chunk whose refresh failed, so it can be claimed again, or marks it as failed if it has failed too
+     * many times
+     *
+     * @param connection
+     * @param chunk
+     * @param owner
+     * @return true if the chunk has been marked as failed
+     * @throws SQLException
+     */
+    public boolean fail(Connection connection, Chunk chunk, String owner) throws SQLException {
+        if (update(connection, chunk, "status = ?, owner = NULL", new Object[]{STATUS_FAILED},
+            "status = ? AND owner = ? AND attempts >= ?",
+            new Object[]{STATUS_CLAIMED, owner, Integer.valueOf(MAX_ATTEMPTS)})) {
+            return true;
+        }
+        update(connection, chunk, "status = ?, owner = NULL", new Object[]{STATUS_PENDING},
+            "status = ? AND owner = ?", new Object[]{STATUS_CLAIMED, owner});
+        return false;
+    }
+
+    /**
+     * Returns the progress of a load
+     *
+     * @param connection
+     * @param runId
+     * @return
+     * @throws SQLException
+     */
+    public Progress getProgress(Connection connection, String runId) throws SQLException {
+
+        Progress progress = new Progress();
+
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            ps = connection.prepareStatement("SELECT status, CASE WHEN lease_expiration < CURRENT_TIMESTAMP THEN 1 "
+                + "ELSE 0 END, seq_to - seq_from, attempts FROM " + this.tableName + " WHERE run_id = ?");
+            ps.setString(1, runId);
+            rs = ps.executeQuery();
+            while (rs.next()) {
+                String status = rs.getString(1);
+                boolean expired = rs.getInt(2) == 1;
+                if (STATUS_DONE.equals(status)) {
+                    progress.doneChunks++;
+                    progress.doneRows += rs.getInt(3);
+                } else if (STATUS_FAILED.equals(status)
+                    || (STATUS_CLAIMED.equals(status) && expired && rs.getInt(4) >= MAX_ATTEMPTS)) {
+                    // A chunk whose owner died too many times is not claimed again
+                    progress.failedChunks++;
+                } else if (STATUS_CLAIMED.equals(status) && !expired) {
+                    progress.runningChunks++;
+                } else {
+                    progress.pendingChunks++;
+                }
+            }
+        } finally {
+            DBUtils.closeRs(rs);
+            DBUtils.closePs(ps);
+        }
+
+        return progress;
+    }
+
+    /**
+     * Deletes the chunks of a load
+     *
+     * @param connection
+     * @param runId
+     * @throws SQLException
+     */
+    public void delete(Connection connection, String runId) throws SQLException {
+
+        PreparedStatement ps = null;
+        try {
+            ps = connection.prepareStatement("DELETE FROM " + this.tableName + " WHERE run_id = ?");
+            ps.setString(1, runId);
+            ps.executeUpdate();
+            commit(connection);
+        } finally {
+            DBUtils.closePs(ps);
+        }
+    }
+
+    private boolean update(Connection connection, Chunk chunk, String set, Object[] setParameters,
+        String condition, Object[] conditionParameters) throws SQLException {
+
+        PreparedStatement ps = null;
+        try {
+            ps = connection.prepareStatement("UPDATE " + this.tableName + " SET " + set
+                + " WHERE run_id = ? AND chunk_no = ? AND " + condition);
+            int i = 1;
+            for (Object parameter : setParameters) {
+                ps.setObject(i++, parameter);
+            }
+            ps.setString(i++, chunk.getRunId());
+            ps.setInt(i++, chunk.getChunkNo());
+            for (Object parameter : conditionParameters) {
+                ps.setObject(i++, parameter);
+            }
+            boolean updated = ps.executeUpdate() == 1;
+            commit(connection);
+            return updated;
+        } finally {
+            DBUtils.closePs(ps);
+        }
+    }
+
+    /**
+     * Expiration of a lease that starts now, as a standard SQL expression evaluated by the cache database
+     */
+    private static String getLeaseExpiration(long leaseMillis) {
+        String millis = String.valueOf(leaseMillis % 1000 + 1000).substring(1);
+        return "CURRENT_TIMESTAMP + INTERVAL '" + leaseMillis / 1000 + "." + millis + "' SECOND";
+    }
+
+    private static void commit(Connection connection) throws SQLException {
+        if (!connection.getAutoCommit()) {
+            connection.commit();
+        }
+    }
+
+    /**
+     * Chunk of a cluster-wide load: range [seq_from, seq_to) of the staging table
+     */
+    public static class Chunk {
+
+        private final String runId;
+        private final int chunkNo;
+        private final int seqFrom;
+        private final int seqTo;
+
+        public Chunk(String runId, int chunkNo, int seqFrom, int seqTo) {
+            this.runId = runId;
+            this.chunkNo = chunkNo;
+            this.seqFrom = seqFrom;
+            this.seqTo = seqTo;
+        }
+
+        public String getRunId() {
+            return this.runId;
+        }
+
+        public int getChunkNo() {
+            return this.chunkNo;
+        }
+
+        public int getSeqFrom() {
+            return this.seqFrom;
+        }
+
+        public int getSeqTo() {
+            return this.seqTo;
+        }
+
+        @Override
+        public String toString() {
+            return this.runId + "#" + this.chunkNo + " [" + this.seqFrom + ", " + this.seqTo + ")";
+        }
+    }
+
+    /**
+     * Number of chunks of a load by status. Claimed chunks whose lease has expired are counted as pending.
+     */
+    public static class Progress {
+
+        private int pendingChunks;
+        private int runningChunks;
+        private int doneChunks;
+        private int failedChunks;
+        private int doneRows;
+
+        public int getPendingChunks() {
+            return this.pendingChunks;
+        }
+
+        public int getRunningChunks() {
+            return this.runningChunks;
+        }
+
+        public int getDoneChunks() {
+            return this.doneChunks;
+        }
+
+        public int getFailedChunks() {
+            return this.failedChunks;
+        }
+
+        public int getDoneRows() {
+            return this.doneRows;
+        }
+
+        public boolean isFinished() {
+            return this.pendingChunks == 0 && this.runningChunks == 0;
+        }
+
+        @Override
+        public String toString() {
+            return "pending=" + this.pendingChunks + ", running=" + this.runningChunks + ", done=" + this.doneChunks
+                + ", failed=" + this.failedChunks + ", done rows=" + this.doneRows;
+        }
+    }
+}
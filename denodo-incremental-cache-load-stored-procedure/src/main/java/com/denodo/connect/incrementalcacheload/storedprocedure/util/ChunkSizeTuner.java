@@ -0,0 +1,201 @@
+package com.denodo.connect.incrementalcacheload.storedprocedure.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Chooses the chunk size and the concurrency of the next load of a view from the history of its previous loads, by
+ * hill climbing on the throughput (rows loaded into cache per second):
+ *  - The configuration with the best average throughput in the recent history is the current one.
+ *  - If one of its neighbours (double or half chunk size, one more or one less concurrent chunk) has not been tried,
+ *    it is tried in the next load.
+ *  - Otherwise, the best configuration is used. As the history only contains the last loads, neighbours are tried
+ *    again from time to time, so the tuning follows the changes of the source and the cache.
+ *
+ * Only the loads refreshed in chunks of 'num_elements_in_clause' PK values (keys and ranges strategies) are used.
+ * Configurations that have failed are not tried again while they are in the history.
+ *
+ * The throughput depends on the size of the delta (a small delta does not fill all the concurrent chunks and pays the
+ * same fixed costs as a big one), so only the loads with a delta of similar size are compared: those within a factor
+ * of {@value #SIMILAR_DELTA_FACTOR} of the median delta of the history, that is the expected size of the next one.
+ *
+ */
+public class ChunkSizeTuner {
+
+    public static final int DEFAULT_CHUNK_SIZE = 1000;
+    private static final int MIN_CHUNK_SIZE = 10;
+    private static final int MAX_CHUNK_SIZE = 10000;
+    private static final int MAX_CONCURRENCY = 8;
+    // Loads of the history used for tuning
+    public static final int HISTORY_RUNS = 30;
+    // Maximum ratio between the delta of a load and the median delta for the load to be compared
+    private static final int SIMILAR_DELTA_FACTOR = 4;
+
+    private final List<RunRecord> runs;
+    private final Integer fixedConcurrency;
+
+    /**
+     * @param runs last loads of the view, the most recent first
+     * @param fixedConcurrency concurrency set in the options, that is not tuned, or null
+     */
+    public ChunkSizeTuner(List<RunRecord> runs, Integer fixedConcurrency) {
+        this.runs = runs;
+        this.fixedConcurrency = fixedConcurrency;
+    }
+
+    /**
+     * Returns the chunk size and the concurrency of the next load
+     *
+     * @return
+     */
+    public Tuning tune() {
+
+        List<RunRecord> chunkedRuns = new ArrayList<>();
+        for (RunRecord run : this.runs) {
+            if (!RefreshStrategySelector.STRATEGY_KEYS.equals(run.getStrategy())
+                && !RefreshStrategySelector.STRATEGY_RANGES.equals(run.getStrategy())) {
+                continue;
+            }
+            if (this.fixedConcurrency != null && run.getConcurrency() != this.fixedConcurrency.intValue()) {
+                continue;
+            }
+            if (run.isCancelled()) {
+                // A cancelled load neither failed nor has a meaningful throughput
+                continue;
+            }
+            chunkedRuns.add(run);
+        }
+        long medianDelta = medianDelta(chunkedRuns);
+
+        // Average throughput of each configuration. Failed configurations have a negative throughput
+        Map<List<Integer>, double[]> configurations = new LinkedHashMap<>();
+        for (RunRecord run : chunkedRuns) {
+            if (run.getDeltaRows() * SIMILAR_DELTA_FACTOR < medianDelta
+                || run.getDeltaRows() > medianDelta * SIMILAR_DELTA_FACTOR) {
+                continue;
+            }
+            List<Integer> configuration = configuration(run.getChunkSize(), run.getConcurrency());
+            double[] throughput = configurations.get(configuration);
+            if (throughput == null) {
+                throughput = new double[]{0, 0};
+                configurations.put(configuration, throughput);
+            }
+            double runThroughput = run.getThroughput();
+            if (runThroughput < 0 && run.getErrorMessage() != null) {
+                // Failed loads mark the configuration as failed
+                throughput[0] = -1;
+                throughput[1] = -1;
+            } else if (runThroughput >= 0 && throughput[1] >= 0) {
+                throughput[0] += runThroughput;
+                throughput[1]++;
+            }
+        }
+
+        List<Integer> best = null;
+        double bestThroughput = 0;
+        for (Map.Entry<List<Integer>, double[]> configuration : configurations.entrySet()) {
+            double[] throughput = configuration.getValue();
+            if (throughput[1] > 0 && throughput[0] / throughput[1] > bestThroughput) {
+                best = configuration.getKey();
+                bestThroughput = throughput[0] / throughput[1];
+            }
+        }
+
+        int defaultConcurrency = this.fixedConcurrency != null ? this.fixedConcurrency.intValue() : 1;
+        if (best == null) {
+            return new Tuning(DEFAULT_CHUNK_SIZE, defaultConcurrency, "no successful loads in history, default");
+        }
+
+        int chunkSize = best.get(0).intValue();
+        int concurrency = best.get(1).intValue();
+        for (List<Integer> neighbour : neighbours(chunkSize, concurrency)) {
+            if (!configurations.containsKey(neighbour)) {
+                return new Tuning(neighbour.get(0).intValue(), neighbour.get(1).intValue(), "exploring from best "
+                    + "chunk size=" + chunkSize + ", concurrency=" + concurrency + " ("
+                    + Math.round(bestThroughput) + " rows/s)");
+            }
+        }
+
+        return new Tuning(chunkSize, concurrency, "best average throughput in history ("
+            + Math.round(bestThroughput) + " rows/s)");
+    }
+
+    private static long medianDelta(List<RunRecord> runs) {
+
+        List<Long> deltas = new ArrayList<>();
+        for (RunRecord run : runs) {
+            if (run.getDeltaRows() > 0) {
+                deltas.add(Long.valueOf(run.getDeltaRows()));
+            }
+        }
+        if (deltas.isEmpty()) {
+            return 0;
+        }
+        Collections.sort(deltas);
+        return deltas.get(deltas.size() / 2).longValue();
+    }
+
+    private List<List<Integer>> neighbours(int chunkSize, int concurrency) {
+
+        List<List<Integer>> neighbours = new ArrayList<>();
+        if (chunkSize * 2 <= MAX_CHUNK_SIZE) {
+            neighbours.add(configuration(chunkSize * 2, concurrency));
+        }
+        if (chunkSize / 2 >= MIN_CHUNK_SIZE) {
+            neighbours.add(configuration(chunkSize / 2, concurrency));
+        }
+        if (this.fixedConcurrency == null) {
+            if (concurrency + 1 <= MAX_CONCURRENCY) {
+                neighbours.add(configuration(chunkSize, concurrency + 1));
+            }
+            if (concurrency - 1 >= 1) {
+                neighbours.add(configuration(chunkSize, concurrency - 1));
+            }
+        }
+        return neighbours;
+    }
+
+    private static List<Integer> configuration(int chunkSize, int concurrency) {
+        List<Integer> configuration = new ArrayList<>(2);
+        configuration.add(Integer.valueOf(chunkSize));
+        configuration.add(Integer.valueOf(concurrency));
+        return configuration;
+    }
+
+    /**
+     * Chunk size and concurrency chosen for a load and the reason of the choice
+     */
+    public static class Tuning {
+
+        private final int chunkSize;
+        private final int concurrency;
+        private final String reason;
+
+        public Tuning(int chunkSize, int concurrency, String reason) {
+            this.chunkSize = chunkSize;
+            this.concurrency = concurrency;
+            this.reason = reason;
+        }
+
+        public int getChunkSize() {
+            return this.chunkSize;
+        }
+
+        public int getConcurrency() {
+            return this.concurrency;
+        }
+
+        public String getReason() {
+            return this.reason;
+        }
+
+        @Override
+        public String toString() {
+            return "num_elements_in_clause=" + this.chunkSize + ", concurrency=" + this.concurrency + " ("
+                + this.reason + ")";
+        }
+    }
+}
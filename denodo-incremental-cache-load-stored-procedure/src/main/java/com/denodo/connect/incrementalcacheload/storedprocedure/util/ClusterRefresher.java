@@ -0,0 +1,335 @@
+package com.denodo.connect.incrementalcacheload.storedprocedure.util;
+
+import java.net.InetAddress;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.denodo.vdb.engine.storedprocedure.DatabaseEnvironmentImpl;
+import com.denodo.vdb.engine.storedprocedure.StoredProcedureException;
+
+/**
+ * Refreshes the chunks of a load in several VDP servers that share the same cache database:
+ *  - The coordinator stages the changed PK values, registers the chunks in the work table and refreshes chunks until
+ *    all of them are done, waiting for the ones claimed by other servers. Its result is the aggregated progress of
+ *    all the servers.
+ *  - The workers refresh the pending chunks of the view until there are none for some time.
+ *
+ * The lease of a chunk is renewed every third of its duration while the chunk is refreshed, with a cache connection
+ * used only for that.
+ *
+ */
+public class ClusterRefresher {
+
+    private static final Logger logger = Logger.getLogger(ClusterRefresher.class);
+
+    public static final String MODE_COORDINATOR = "coordinator";
+    public static final String MODE_WORKER = "worker";
+
+    // Time between checks of the work table when there are no chunks to claim
+    private static final long POLL_MILLIS = 1000;
+    // Time a worker waits for new chunks before finishing
+    private static final long WORKER_IDLE_MILLIS = 30000;
+
+    private final DatabaseEnvironmentImpl environment;
+    private final InputParametersVO inputParameters;
+    private final List<String> pkFields;
+    private final String cacheDataSource;
+    private final ChunkLeaseTable leaseTable;
+    private final String owner;
+    private final String databaseName;
+    private final String viewName;
+    private int refreshedChunks;
+    private int failedChunks;
+    // Numbers of the chunks of the work table refreshed by this server
+    private final Set<Integer> committedChunks = new TreeSet<>();
+
+    public ClusterRefresher(DatabaseEnvironmentImpl environment, InputParametersVO inputParameters,
+        List<String> pkFields, String cacheDataSource) {
+        this.environment = environment;
+        this.inputParameters = inputParameters;
+        this.pkFields = pkFields;
+        this.cacheDataSource = cacheDataSource;
+        this.leaseTable = new ChunkLeaseTable(inputParameters.getWorkTable());
+        this.owner = getHostName() + "-" + UUID.randomUUID().toString();
+        this.databaseName = inputParameters.getDatabaseName().replace("\"", "");
+        this.viewName = inputParameters.getViewName().replace("\"", "");
+    }
+
+    /**
+     * Registers the chunks of the staged PK values in the work table and refreshes them together with the workers
+     *
+     * @param stagingTable staging table with the PK values already inserted
+     * @param queryList queries returned by the staging table. The ones that are not based on the staging table are
+     * refreshed by the coordinator
+     * @return number of PK values updated in cache by all the servers
+     * @throws StoredProcedureException
+     */
+    public int coordinate(KeyStagingTable stagingTable, QueryList queryList) throws StoredProcedureException {
+
+        String runId = stagingTable.getRunId();
+        List<int[]> seqRanges = new ArrayList<>();
+        int chunkSize = this.inputParameters.getStagingChunkSize();
+        for (int seq = 0; seq < stagingTable.getStagedRows(); seq += chunkSize) {
+            seqRanges.add(new int[]{seq, Math.min(seq + chunkSize, stagingTable.getStagedRows())});
+        }
+
+        Connection connection = null;
+        try {
+            connection = getCacheConnection();
+            this.leaseTable.registerChunks(connection, runId, this.databaseName, this.viewName, seqRanges);
+        } catch (SQLException e) {
+            logger.debug("ERROR in coordinate(): ", e);
+            throw new StoredProcedureException("ERROR registering chunks in work table "
+                + this.inputParameters.getWorkTable() + ": " + e.getMessage(), e);
+        } finally {
+            DBUtils.closeConn(connection);
+        }
+        logger.debug("coordinate(): " + seqRanges.size() + " chunks registered with run_id " + runId);
+
+        try {
+            // PK values that cannot be staged are refreshed by the coordinator
+            List<QueryParameters> localQueries = new ArrayList<>();
+            for (QueryParameters q : queryList.getQueryList()) {
+                if (q.getKeys() != null) {
+                    localQueries.add(q);
+                }
+            }
+            int localRows = newCacheRefresher().refresh(localQueries);
+
+            refreshChunks(runId);
+
+            ChunkLeaseTable.Progress progress = getProgress(runId);
+            logger.debug("coordinate(): run_id " + runId + " finished. " + progress);
+            int updated = progress.getDoneRows() + localRows;
+            if (progress.getFailedChunks() > 0) {
+                throw new IncrementalCacheLoadStoreProcedureException("ERROR executing query update of cache: "
+                    + progress.getFailedChunks() + " chunks failed [Rows updated in cache: " + updated + "].",
+                    null, updated);
+            }
+            return updated;
+
+        } finally {
+            try {
+                connection = getCacheConnection();
+                this.leaseTable.delete(connection, runId);
+            } catch (SQLException e) {
+                logger.warn("ERROR deleting chunks with run_id " + runId + " from work table "
+                    + this.inputParameters.getWorkTable(), e);
+            } finally {
+                DBUtils.closeConn(connection);
+            }
+        }
+    }
+
+    /**
+     * Refreshes pending chunks of the view registered by any coordinator, until there are no chunks to claim for
+     * some time
+     *
+     * @return number of PK values updated in cache by this server
+     * @throws StoredProcedureException
+     */
+    public int work() throws StoredProcedureException {
+        return refreshChunks(null);
+    }
+
+    public int getRefreshedChunks() {
+        return this.refreshedChunks;
+    }
+
+    public int getFailedChunks() {
+        return this.failedChunks;
+    }
+
+    /**
+     * Claims and refreshes chunks. With a run identifier, it finishes when all the chunks of the run are done or
+     * failed. Without it, it finishes when there are no chunks to claim for some time.
+     */
+    private int refreshChunks(String runId) throws StoredProcedureException {
+
+        int updated = 0;
+        long idleSince = System.currentTimeMillis();
+        while (true) {
+
+            // Chunks claimed by this server and not refreshed yet are claimed by others when their leases expire
+            if (Thread.currentThread().isInterrupted()) {
+                throw cancelError(new InterruptedException(), updated);
+            }
+            ChunkLeaseTable.Chunk chunk = claim(runId);
+            if (chunk != null) {
+                try {
+                    updated = updated + refreshChunk(chunk);
+                } catch (StoredProcedureException e) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw cancelError(e, updated);
+                    }
+                    throw e;
+                }
+                idleSince = System.currentTimeMillis();
+                continue;
+            }
+
+            if (runId != null ? getProgress(runId).isFinished()
+                : System.currentTimeMillis() - idleSince >= WORKER_IDLE_MILLIS) {
+                return updated;
+            }
+
+            try {
+                Thread.sleep(POLL_MILLIS);
+            } catch (InterruptedException e) {
+                throw cancelError(e, updated);
+            }
+        }
+    }
+
+    // e.g. "Cancelled claiming chunks of work table wt [Rows updated in cache: 3000]. Chunks committed by this
+    // server: 1-3, 7."
+    private IncrementalCacheLoadStoreProcedureException cancelError(Throwable e, int updated) {
+
+        Thread.currentThread().interrupt();
+        return new IncrementalCacheLoadStoreProcedureException("Cancelled claiming chunks of work table "
+            + this.inputParameters.getWorkTable() + " [Rows updated in cache: " + updated + "]. Chunks committed by "
+            + "this server: " + CacheRefresher.describeRanges(this.committedChunks) + ".", e, updated,
+            new ArrayList<>(this.committedChunks));
+    }
+
+    private int refreshChunk(ChunkLeaseTable.Chunk chunk) throws StoredProcedureException {
+
+        QueryParameters query = RefreshQueryBuilder.buildStagingRefreshQuery(this.inputParameters, this.pkFields,
+            chunk.getRunId(), chunk.getSeqFrom(), chunk.getSeqTo());
+
+        long leaseMillis = this.inputParameters.getLeaseSeconds() * 1000L;
+        Connection renewalConnection = getCacheConnection();
+        ScheduledExecutorService renewer = Executors.newSingleThreadScheduledExecutor();
+        renewer.scheduleWithFixedDelay(() -> renewLease(renewalConnection, chunk, leaseMillis), leaseMillis / 3,
+            leaseMillis / 3, TimeUnit.MILLISECONDS);
+
+        Connection connection = null;
+        try {
+            int updated;
+            try {
+                updated = newCacheRefresher().refresh(Collections.singletonList(query));
+            } finally {
+                stopRenewal(renewer, renewalConnection);
+            }
+
+            connection = getCacheConnection();
+            if (this.leaseTable.complete(connection, chunk, this.owner)) {
+                this.refreshedChunks++;
+                this.committedChunks.add(Integer.valueOf(chunk.getChunkNo()));
+                return updated;
+            }
+            // The lease expired and the chunk was claimed by another server, that will count it
+            logger.debug("refreshChunk(): lease of chunk " + chunk + " lost");
+            return 0;
+
+        } catch (StoredProcedureException e) {
+            if (Thread.currentThread().isInterrupted()) {
+                // Cancelled: the chunk is not failed, it is claimed by another server when its lease expires
+                throw e;
+            }
+            logger.debug("ERROR in refreshChunk(): chunk " + chunk, e);
+            try {
+                connection = getCacheConnection();
+                if (this.leaseTable.fail(connection, chunk, this.owner)) {
+                    // Failed attempts that are retried are not counted
+                    this.failedChunks++;
+                }
+            } catch (SQLException e2) {
+                // The chunk will be claimed again when its lease expires
+                logger.warn("ERROR releasing chunk " + chunk, e2);
+            }
+            return 0;
+        } catch (SQLException e) {
+            logger.debug("ERROR in refreshChunk(): ", e);
+            throw new StoredProcedureException("ERROR updating chunk " + chunk + " in work table "
+                + this.inputParameters.getWorkTable() + ": " + e.getMessage(), e);
+        } finally {
+            DBUtils.closeConn(connection);
+        }
+    }
+
+    private void renewLease(Connection connection, ChunkLeaseTable.Chunk chunk, long leaseMillis) {
+        try {
+            if (!this.leaseTable.renew(connection, chunk, this.owner, leaseMillis)) {
+                logger.warn("Lease of chunk " + chunk + " lost: it expired before it was renewed");
+            }
+        } catch (SQLException e) {
+            // The chunk is claimed by another server if the lease expires
+            logger.warn("ERROR renewing lease of chunk " + chunk, e);
+        }
+    }
+
+    private static void stopRenewal(ScheduledExecutorService renewer, Connection renewalConnection) {
+        // Pending renewals are cancelled. The one in progress, if any, is not interrupted, as it is using the
+        // connection, which is closed when it finishes
+        renewer.shutdown();
+        try {
+            renewer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        DBUtils.closeConn(renewalConnection);
+    }
+
+    private ChunkLeaseTable.Chunk claim(String runId) throws StoredProcedureException {
+
+        Connection connection = null;
+        try {
+            connection = getCacheConnection();
+            ChunkLeaseTable.Chunk chunk = this.leaseTable.claim(connection, runId, this.databaseName, this.viewName,
+                this.owner, this.inputParameters.getLeaseSeconds() * 1000L);
+            if (chunk != null) {
+                logger.trace("claim(): chunk " + chunk + " claimed by " + this.owner);
+            }
+            return chunk;
+        } catch (SQLException e) {
+            logger.debug("ERROR in claim(): ", e);
+            throw new StoredProcedureException("ERROR claiming chunk from work table "
+                + this.inputParameters.getWorkTable() + ": " + e.getMessage(), e);
+        } finally {
+            DBUtils.closeConn(connection);
+        }
+    }
+
+    private ChunkLeaseTable.Progress getProgress(String runId) throws StoredProcedureException {
+
+        Connection connection = null;
+        try {
+            connection = getCacheConnection();
+            return this.leaseTable.getProgress(connection, runId);
+        } catch (SQLException e) {
+            logger.debug("ERROR in getProgress(): ", e);
+            throw new StoredProcedureException("ERROR reading progress from work table "
+                + this.inputParameters.getWorkTable() + ": " + e.getMessage(), e);
+        } finally {
+            DBUtils.closeConn(connection);
+        }
+    }
+
+    private CacheRefresher newCacheRefresher() {
+        return new CacheRefresher(this.environment, this.inputParameters, this.pkFields, this.cacheDataSource);
+    }
+
+    private Connection getCacheConnection() {
+        return this.environment.getCacheConnection(this.databaseName, true);
+    }
+
+    private static String getHostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (Exception e) {
+            return "unknown";
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.denodo.connect.incrementalcacheload.storedprocedure.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Process-wide registry of the PK values that the invocations of the procedures are refreshing in the cache of each
+ * view, so concurrent loads of the same view (e.g. a scheduled and a manual load, or loads with overlapping last
+ * update conditions) do not reload the same rows at the same time. Before refreshing a chunk, its PK values are
+ * claimed:
+ *  - The values nobody is refreshing are registered and refreshed by the claiming load.
+ *  - The values another load started refreshing after the claiming load read them from the source can be coalesced:
+ *    that refresh reads the source after the change was visible, so the claiming load only waits for it and counts
+ *    them as updated. If that refresh fails, they are claimed again.
+ *  - The other values are waited for and claimed again, as the refresh in flight may have read the source before
+ *    the change.
+ *
+ * Waits are done after the claimed values are refreshed and released, so two loads never wait for each other.
+ *
+ */
+public class InFlightKeyRegistry {
+
+    public static final String POLICY_COALESCE = "coalesce";
+    public static final String POLICY_WAIT = "wait";
+    public static final String POLICY_OFF = "off";
+    public static final List<String> POLICIES = Arrays.asList(POLICY_COALESCE, POLICY_WAIT, POLICY_OFF);
+
+    private static final InFlightKeyRegistry INSTANCE = new InFlightKeyRegistry();
+
+    // Refresh in flight of each PK value, by view. Guarded by this
+    private final Map<String, Map<List<Object>, Refresh>> views = new HashMap<>();
+
+    private InFlightKeyRegistry() {
+    }
+
+    public static InFlightKeyRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the key of a view in the registry. As in VDP, unquoted names are case-insensitive and double-quoted ones
+     * are case-sensitive, so the same view gets the same key however its names are written.
+     *
+     * @param databaseName
+     * @param viewName
+     * @return
+     */
+    public static String getViewKey(String databaseName, String viewName) {
+        return normalizeName(databaseName) + "." + normalizeName(viewName);
+    }
+
+    private static String normalizeName(String name) {
+        if (name.length() > 1 && name.startsWith("\"") && name.endsWith("\"")) {
+            return name.substring(1, name.length() - 1);
+        }
+        return name.toLowerCase();
+    }
+
+    /**
+     * Claims the PK values of a chunk. The returned claim has to be completed when the refresh of the owned values
+     * finishes.
+     *
+     * @param view key of the view the chunk belongs to, see {@link #getViewKey(String, String)}
+     * @param keys PK values, one array per row
+     * @param observedAt System.nanoTime() after the PK values were read from the source
+     * @param coalesce true if the values refreshed by other loads that started after observedAt are not refreshed again
+     * @return
+     */
+    public synchronized Claim claim(String view, List<Object[]> keys, long observedAt, boolean coalesce) {
+
+        Map<List<Object>, Refresh> inFlight = this.views.computeIfAbsent(view, k -> new HashMap<>());
+        Claim claim = new Claim(view, new Refresh(System.nanoTime()));
+        for (Object[] key : keys) {
+            List<Object> mapKey = RowHasher.toKey(key);
+            Refresh other = inFlight.get(mapKey);
+            if (other == null) {
+                inFlight.put(mapKey, claim.refresh);
+                claim.ownedKeys.add(key);
+                claim.ownedMapKeys.add(mapKey);
+            } else if (coalesce && other.startTime - observedAt >= 0) {
+                claim.coalescedKeys.computeIfAbsent(other, k -> new ArrayList<>()).add(key);
+            } else {
+                claim.blockedKeys.computeIfAbsent(other, k -> new ArrayList<>()).add(key);
+            }
+        }
+        return claim;
+    }
+
+    private synchronized void release(Claim claim) {
+
+        Map<List<Object>, Refresh> inFlight = this.views.get(claim.view);
+        if (inFlight == null) {
+            return;
+        }
+        for (List<Object> mapKey : claim.ownedMapKeys) {
+            if (inFlight.get(mapKey) == claim.refresh) {
+                inFlight.remove(mapKey);
+            }
+        }
+        if (inFlight.isEmpty()) {
+            this.views.remove(claim.view);
+        }
+    }
+
+    /**
+     * Refresh in flight of some PK values of a view
+     */
+    public static class Refresh {
+
+        private final long startTime;
+        private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        private Refresh(long startTime) {
+            this.startTime = startTime;
+        }
+
+        /**
+         * Waits until the refresh finishes
+         *
+         * @return true if the PK values were refreshed
+         * @throws InterruptedException
+         */
+        public boolean await() throws InterruptedException {
+            try {
+                return this.result.get().booleanValue();
+            } catch (ExecutionException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Result of claiming the PK values of a chunk
+     */
+    public class Claim implements AutoCloseable {
+
+        private final String view;
+        private final Refresh refresh;
+        private final List<Object[]> ownedKeys = new ArrayList<>();
+        private final List<List<Object>> ownedMapKeys = new ArrayList<>();
+        private final Map<Refresh, List<Object[]>> coalescedKeys = new LinkedHashMap<>();
+        private final Map<Refresh, List<Object[]>> blockedKeys = new LinkedHashMap<>();
+
+        private Claim(String view, Refresh refresh) {
+            this.view = view;
+            this.refresh = refresh;
+        }
+
+        /**
+         * PK values registered by this claim, that have to be refreshed by the claiming load
+         *
+         * @return
+         */
+        public List<Object[]> getOwnedKeys() {
+            return this.ownedKeys;
+        }
+
+        /**
+         * PK values being refreshed by other loads after they were read by the claiming load, by refresh
+         *
+         * @return
+         */
+        public Map<Refresh, List<Object[]>> getCoalescedKeys() {
+            return this.coalescedKeys;
+        }
+
+        /**
+         * PK values being refreshed by other loads that have to be claimed again when they finish, by refresh
+         *
+         * @return
+         */
+        public Map<Refresh, List<Object[]>> getBlockedKeys() {
+            return this.blockedKeys;
+        }
+
+        /**
+         * Releases the owned PK values and notifies the loads waiting for them
+         *
+         * @param success true if the owned PK values were refreshed
+         */
+        public void complete(boolean success) {
+            release(this);
+            this.refresh.result.complete(Boolean.valueOf(success));
+        }
+
+        /**
+         * Releases the owned PK values as not refreshed, if the claim was not completed
+         */
+        @Override
+        public void close() {
+            if (!this.refresh.result.isDone()) {
+                complete(false);
+            }
+        }
+    }
+}
@@ -1,10 +1,15 @@
 package com.denodo.connect.incrementalcacheload.storedprocedure.util;
 
+import java.util.Collections;
+import java.util.List;
+
 import com.denodo.vdb.engine.storedprocedure.StoredProcedureException;
 
 public class IncrementalCacheLoadStoreProcedureException extends StoredProcedureException {
 
     private int updatedRows;
+    // Number (starting at 1) of the chunks refreshed before the error
+    private List<Integer> committedChunks = Collections.emptyList();
 
     public IncrementalCacheLoadStoreProcedureException() {
         super();
@@ -15,7 +20,18 @@ public IncrementalCacheLoadStoreProcedureException(String message, Throwable e,
         this.updatedRows = updatedRows;
     }
 
+    public IncrementalCacheLoadStoreProcedureException(String message, Throwable e, int updatedRows,
+        List<Integer> committedChunks) {
+        super(message, e);
+        this.updatedRows = updatedRows;
+        this.committedChunks = committedChunks;
+    }
+
     public int getUpdatedRows() {
         return updatedRows;
     }
+
+    public List<Integer> getCommittedChunks() {
+        return committedChunks;
+    }
 }
@@ -6,6 +6,20 @@ public class InputParametersVO {
     private String viewName;
     private String lastUpdateCondition;
     private Integer numElementsInClause;
+    private boolean skipUnchangedRows;
+    private String refreshStrategy;
+    private String partitionColumn;
+    private String stagingTable;
+    private String stagingView;
+    private int stagingChunkSize;
+    private String clusterMode;
+    private String workTable;
+    private int leaseSeconds;
+    private String chunkOrder;
+    private String clusteringColumn;
+    private String historyTable;
+    private Integer concurrency;
+    private String inFlightKeys;
 
     public InputParametersVO() {
         super();
@@ -51,6 +65,118 @@ public void setNumElementsInClause(Integer numElementsInClause) {
         this.numElementsInClause = numElementsInClause;
     }
 
+    public boolean isSkipUnchangedRows() {
+        return this.skipUnchangedRows;
+    }
+
+    public void setSkipUnchangedRows(boolean skipUnchangedRows) {
+        this.skipUnchangedRows = skipUnchangedRows;
+    }
+
+    public String getRefreshStrategy() {
+        return this.refreshStrategy;
+    }
+
+    public void setRefreshStrategy(String refreshStrategy) {
+        this.refreshStrategy = refreshStrategy;
+    }
+
+    public String getPartitionColumn() {
+        return this.partitionColumn;
+    }
+
+    public void setPartitionColumn(String partitionColumn) {
+        this.partitionColumn = partitionColumn;
+    }
+
+    public String getStagingTable() {
+        return this.stagingTable;
+    }
+
+    public void setStagingTable(String stagingTable) {
+        this.stagingTable = stagingTable;
+    }
+
+    public String getStagingView() {
+        return this.stagingView;
+    }
+
+    public void setStagingView(String stagingView) {
+        this.stagingView = stagingView;
+    }
+
+    public int getStagingChunkSize() {
+        return this.stagingChunkSize;
+    }
+
+    public void setStagingChunkSize(int stagingChunkSize) {
+        this.stagingChunkSize = stagingChunkSize;
+    }
+
+    public String getClusterMode() {
+        return this.clusterMode;
+    }
+
+    public void setClusterMode(String clusterMode) {
+        this.clusterMode = clusterMode;
+    }
+
+    public String getWorkTable() {
+        return this.workTable;
+    }
+
+    public void setWorkTable(String workTable) {
+        this.workTable = workTable;
+    }
+
+    public int getLeaseSeconds() {
+        return this.leaseSeconds;
+    }
+
+    public void setLeaseSeconds(int leaseSeconds) {
+        this.leaseSeconds = leaseSeconds;
+    }
+
+    public String getChunkOrder() {
+        return this.chunkOrder;
+    }
+
+    public void setChunkOrder(String chunkOrder) {
+        this.chunkOrder = chunkOrder;
+    }
+
+    public String getClusteringColumn() {
+        return this.clusteringColumn;
+    }
+
+    public void setClusteringColumn(String clusteringColumn) {
+        this.clusteringColumn = clusteringColumn;
+    }
+
+    public String getHistoryTable() {
+        return this.historyTable;
+    }
+
+    public void setHistoryTable(String historyTable) {
+        this.historyTable = historyTable;
+    }
+
+    public Integer getConcurrency() {
+        return this.concurrency;
+    }
+
+    public void setConcurrency(Integer concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    public String getInFlightKeys() {
+        return this.inFlightKeys;
+    }
+
+    public void setInFlightKeys(String inFlightKeys) {
+        this.inFlightKeys = inFlightKeys;
+    }
+
     @Override
     public String toString() {
         return "InputParametersVO{" +
@@ -58,6 +184,20 @@ public String toString() {
                 ", viewName='" + viewName + '\'' +
                 ", lastUpdateCondition='" + lastUpdateCondition + '\'' +
                 ", numElementsInClause=" + numElementsInClause +
+                ", skipUnchangedRows=" + skipUnchangedRows +
+                ", refreshStrategy='" + refreshStrategy + '\'' +
+                ", partitionColumn='" + partitionColumn + '\'' +
+                ", stagingTable='" + stagingTable + '\'' +
+                ", stagingView='" + stagingView + '\'' +
+                ", stagingChunkSize=" + stagingChunkSize +
+                ", clusterMode='" + clusterMode + '\'' +
+                ", workTable='" + workTable + '\'' +
+                ", leaseSeconds=" + leaseSeconds +
+                ", chunkOrder='" + chunkOrder + '\'' +
+                ", clusteringColumn='" + clusteringColumn + '\'' +
+                ", historyTable='" + historyTable + '\'' +
+                ", concurrency=" + concurrency +
+                ", inFlightKeys='" + inFlightKeys + '\'' +
                 '}';
     }
 }
@@ -0,0 +1,189 @@
+package com.denodo.connect.incrementalcacheload.storedprocedure.util;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.log4j.Logger;
+
+import com.denodo.vdb.engine.storedprocedure.DatabaseEnvironmentImpl;
+import com.denodo.vdb.engine.storedprocedure.StoredProcedureException;
+
+/**
+ * Stores the PK values to refresh in a staging table of the cache database, so the cache can be refreshed with a few
+ * queries with a semi-join instead of thousands of queries with bound parameters:
+ *
+ *   SELECT * FROM view WHERE pk IN (SELECT pk_value FROM staging_view WHERE run_id = ? AND seq >= ? AND seq < ?)
+ *
+ * The staging table has to be created in the cache database with these columns: run_id (text, 36 characters),
+ * seq (integer) and pk_value (same type as the PK of the view), and it has to be imported in VDP as a base view.
+ * The PK values are inserted using JDBC batches and deleted when the load finishes. Only for single field PKs.
+ *
+ */
+public class KeyStagingTable {
+
+    private static final Logger logger = Logger.getLogger(KeyStagingTable.class);
+
+    private static final int BATCH_SIZE = 1000;
+
+    private final DatabaseEnvironmentImpl environment;
+    private final InputParametersVO inputParameters;
+    private final List<String> pkFields;
+    private final String runId = UUID.randomUUID().toString();
+    private int stagedRows;
+
+    public KeyStagingTable(DatabaseEnvironmentImpl environment, InputParametersVO inputParameters,
+        List<String> pkFields) {
+        this.environment = environment;
+        this.inputParameters = inputParameters;
+        this.pkFields = pkFields;
+    }
+
+    public String getRunId() {
+        return this.runId;
+    }
+
+    /**
+     * Returns the number of PK values inserted in the staging table. Their sequence numbers go from 0 to this value,
+     * exclusive.
+     *
+     * @return
+     */
+    public int getStagedRows() {
+        return this.stagedRows;
+    }
+
+    /**
+     * Inserts in the staging table the PK values that match the input condition and returns the queries that refresh
+     * them, each one with up to 'staging_chunk_size' PK values.
+     *
+     * @return
+     * @throws StoredProcedureException
+     */
+    public QueryList stageKeys() throws StoredProcedureException {
+
+        // Sorted PK values give each range of sequence numbers a contiguous range of the cache table
+        String query = RefreshQueryBuilder.buildDeltaQuery(this.inputParameters, this.pkFields, false);
+        String insert = "INSERT INTO " + this.inputParameters.getStagingTable()
+            + " (run_id, seq, pk_value) VALUES (?, ?, ?)";
+
+        int rowCount = 0;
+        // Null PK values never match the IN clause, so they are refreshed by value
+        List<Object[]> nullKeys = new ArrayList<>();
+        Connection cacheConnection = null;
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        boolean committed = false;
+        // Autocommit mode of the pooled connection, restored before returning it
+        Boolean autoCommit = null;
+        try {
+            cacheConnection = getCacheConnection();
+            autoCommit = Boolean.valueOf(cacheConnection.getAutoCommit());
+            cacheConnection.setAutoCommit(false);
+            ps = cacheConnection.prepareStatement(insert);
+
+            logger.debug("stageKeys(): query = " + query);
+            rs = this.environment.executeQuery(query);
+
+            int batchCount = 0;
+            while (rs.next()) {
+                Utils.checkCancelled("staging PK values", 0);
+                Object value = rs.getObject(1);
+                if (value == null) {
+                    nullKeys.add(new Object[]{""});
+                    continue;
+                }
+                ps.setString(1, this.runId);
+                ps.setInt(2, rowCount);
+                ps.setObject(3, value);
+                ps.addBatch();
+                rowCount++;
+                batchCount++;
+
+                if (batchCount == BATCH_SIZE) {
+                    ps.executeBatch();
+                    batchCount = 0;
+                }
+            }
+            if (batchCount > 0) {
+                ps.executeBatch();
+            }
+            cacheConnection.commit();
+            committed = true;
+
+        } catch (SQLException e) {
+            logger.debug("ERROR in stageKeys(): ", e);
+            throw new StoredProcedureException("ERROR inserting PK values in staging table "
+                + this.inputParameters.getStagingTable() + ": " + e.getMessage(), e);
+        } finally {
+            // Close resources
+            DBUtils.closeRs(rs);
+            DBUtils.closePs(ps);
+            if (!committed && cacheConnection != null) {
+                // Failed or cancelled: the PK values inserted so far are discarded
+                try {
+                    cacheConnection.rollback();
+                } catch (SQLException e) {
+                    logger.warn("ERROR rolling back staging table " + this.inputParameters.getStagingTable(), e);
+                }
+            }
+            if (autoCommit != null) {
+                try {
+                    cacheConnection.setAutoCommit(autoCommit.booleanValue());
+                } catch (SQLException e) {
+                    logger.warn("ERROR restoring autocommit of cache connection", e);
+                }
+            }
+            DBUtils.closeConn(cacheConnection);
+        }
+
+        this.stagedRows = rowCount;
+        List<QueryParameters> queryList = new ArrayList<>();
+        int chunkSize = this.inputParameters.getStagingChunkSize();
+        for (int seq = 0; seq < rowCount; seq += chunkSize) {
+            queryList.add(RefreshQueryBuilder.buildStagingRefreshQuery(this.inputParameters, this.pkFields,
+                this.runId, seq, Math.min(seq + chunkSize, rowCount)));
+        }
+        if (!nullKeys.isEmpty()) {
+            queryList.add(RefreshQueryBuilder.buildRefreshQuery(this.inputParameters, this.pkFields, nullKeys));
+        }
+
+        logger.debug("stageKeys(): " + rowCount + " PK values staged with run_id " + this.runId);
+        return new QueryList(rowCount + nullKeys.size(), queryList);
+    }
+
+    /**
+     * Deletes the PK values of this load from the staging table. Errors are only logged, so they do not hide the
+     * result of the load.
+     */
+    public void clean() {
+
+        Connection cacheConnection = null;
+        PreparedStatement ps = null;
+        try {
+            cacheConnection = getCacheConnection();
+            ps = cacheConnection.prepareStatement("DELETE FROM " + this.inputParameters.getStagingTable()
+                + " WHERE run_id = ?");
+            ps.setString(1, this.runId);
+            int deleted = ps.executeUpdate();
+            if (!cacheConnection.getAutoCommit()) {
+                cacheConnection.commit();
+            }
+            logger.debug("clean(): " + deleted + " PK values deleted with run_id " + this.runId);
+        } catch (SQLException e) {
+            logger.warn("ERROR deleting PK values with run_id " + this.runId + " from staging table "
+                + this.inputParameters.getStagingTable(), e);
+        } finally {
+            DBUtils.closePs(ps);
+            DBUtils.closeConn(cacheConnection);
+        }
+    }
+
+    private Connection getCacheConnection() {
+        return this.environment.getCacheConnection(this.inputParameters.getDatabaseName().replace("\"", ""), true);
+    }
+}
@@ -1,10 +1,16 @@
 package com.denodo.connect.incrementalcacheload.storedprocedure.util;
 
+import java.util.List;
+
 public class QueryParameters {
 
     private String query;
     private Object[] parameters;
     private int chunkSize;
+    // PK values of the rows refreshed by the query, one array per row
+    private List<Object[]> keys;
+    // True if the query refreshes all the PK values between the first and the last of the keys
+    private boolean pkRange;
 
     public String getQuery() {
         return query;
@@ -29,4 +35,20 @@ public int getChunkSize() {
     public void setChunkSize(int chunkSize) {
         this.chunkSize = chunkSize;
     }
+
+    public List<Object[]> getKeys() {
+        return keys;
+    }
+
+    public void setKeys(List<Object[]> keys) {
+        this.keys = keys;
+    }
+
+    public boolean isPkRange() {
+        return pkRange;
+    }
+
+    public void setPkRange(boolean pkRange) {
+        this.pkRange = pkRange;
+    }
 }
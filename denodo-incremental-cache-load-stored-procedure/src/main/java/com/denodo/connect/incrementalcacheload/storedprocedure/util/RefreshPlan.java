@@ -0,0 +1,56 @@
+package com.denodo.connect.incrementalcacheload.storedprocedure.util;
+
+/**
+ * Refresh strategy chosen for an incremental cache load and the reason of the choice
+ *
+ */
+public class RefreshPlan {
+
+    private String strategy;
+    // Rows matching the last update condition, -1 if they have not been estimated
+    private long deltaRows;
+    private String details;
+
+    public RefreshPlan() {
+        super();
+    }
+
+    public RefreshPlan(String strategy, long deltaRows, String details) {
+        this.strategy = strategy;
+        this.deltaRows = deltaRows;
+        this.details = details;
+    }
+
+    public String getStrategy() {
+        return this.strategy;
+    }
+
+    public void setStrategy(String strategy) {
+        this.strategy = strategy;
+    }
+
+    public long getDeltaRows() {
+        return this.deltaRows;
+    }
+
+    public void setDeltaRows(long deltaRows) {
+        this.deltaRows = deltaRows;
+    }
+
+    public String getDetails() {
+        return this.details;
+    }
+
+    public void setDetails(String details) {
+        this.details = details;
+    }
+
+    @Override
+    public String toString() {
+        return "RefreshPlan{" +
+                "strategy='" + strategy + '\'' +
+                ", deltaRows=" + deltaRows +
+                ", details='" + details + '\'' +
+                '}';
+    }
+}
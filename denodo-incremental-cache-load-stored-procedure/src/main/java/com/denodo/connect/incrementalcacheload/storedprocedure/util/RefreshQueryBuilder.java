@@ -0,0 +1,275 @@
+package com.denodo.connect.incrementalcacheload.storedprocedure.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds the VQL queries used to read and refresh a chunk of PK values of the cached view
+ *
+ */
+public class RefreshQueryBuilder {
+
+    public static final String CHUNK_ORDER_PK = "pk";
+    public static final String CHUNK_ORDER_NONE = "none";
+
+    private static final String CACHE_PRELOAD_CONTEXT = "CONTEXT('cache_preload'='true','cache_invalidate'='matching_rows',"
+        + "'returnqueryresults'='false','cache_wait_for_load'='true')";
+
+    /**
+     * Builds the query that reads the distinct PK values matching the last update condition in the source. The PK
+     * values are sorted by the clustering column, if configured, and by PK, so consecutive chunks map to contiguous
+     * ranges of the index of the cache table instead of pages spread all over it. The clustering column is selected
+     * after the PK fields, as the ORDER BY of a SELECT DISTINCT can only use selected fields.
+     *
+     * @param inputParameters
+     * @param pkFields
+     * @param ranges true if the PK values have to be sorted by PK to refresh them as ranges, whatever the chunk order
+     * @return
+     */
+    public static String buildDeltaQuery(InputParametersVO inputParameters, List<String> pkFields, boolean ranges) {
+
+        String fields = Utils.join(pkFields, ", ");
+        String orderBy = null;
+        if (ranges) {
+            orderBy = pkFields.get(0);
+        } else if (CHUNK_ORDER_PK.equals(inputParameters.getChunkOrder())) {
+            String clusteringColumn = inputParameters.getClusteringColumn();
+            if (clusteringColumn != null && !containsField(pkFields, clusteringColumn)) {
+                fields = fields + ", " + clusteringColumn;
+                orderBy = clusteringColumn + ", " + Utils.join(pkFields, ", ");
+            } else {
+                orderBy = Utils.join(pkFields, ", ");
+            }
+        }
+
+        return "SELECT DISTINCT " + fields + " FROM " + inputParameters.getDatabaseName() + "."
+            + inputParameters.getViewName() + " WHERE " + inputParameters.getLastUpdateCondition()
+            + (orderBy != null ? " ORDER BY " + orderBy : "") + " CONTEXT('cache'='off')";
+    }
+
+    /**
+     * Builds the query that loads into cache the rows with the given PK values
+     *
+     * @param inputParameters
+     * @param pkFields
+     * @param keys PK values, one array per row
+     * @return
+     */
+    public static QueryParameters buildRefreshQuery(InputParametersVO inputParameters, List<String> pkFields,
+        List<Object[]> keys) {
+
+        String query = "SELECT * FROM " + inputParameters.getDatabaseName() + "." + inputParameters.getViewName()
+            + " WHERE " + buildPkCondition(pkFields, keys.size()) + " " + CACHE_PRELOAD_CONTEXT;
+
+        return buildQueryParameters(query, keys);
+    }
+
+    /**
+     * Builds the query that loads into cache all the rows whose PK is between the first and the last of the given
+     * PK values, that have to be sorted. Only for single field PKs.
+     *
+     * @param inputParameters
+     * @param pkFields
+     * @param keys sorted PK values, one array per row
+     * @return
+     */
+    public static QueryParameters buildRangeRefreshQuery(InputParametersVO inputParameters, List<String> pkFields,
+        List<Object[]> keys) {
+
+        String query = "SELECT * FROM " + inputParameters.getDatabaseName() + "." + inputParameters.getViewName()
+            + " WHERE " + pkFields.get(0) + " >= ? AND " + pkFields.get(0) + " <= ? " + CACHE_PRELOAD_CONTEXT;
+
+        QueryParameters queryParameters = new QueryParameters();
+        queryParameters.setQuery(query);
+        queryParameters.setParameters(new Object[]{keys.get(0)[0], keys.get(keys.size() - 1)[0]});
+        queryParameters.setChunkSize(keys.size());
+        queryParameters.setKeys(new ArrayList<>(keys));
+        queryParameters.setPkRange(true);
+        return queryParameters;
+    }
+
+    /**
+     * Builds the query that loads into cache the rows whose PK values are stored in the staging table with the given
+     * run identifier and sequence numbers. Only for single field PKs.
+     *
+     * @param inputParameters
+     * @param pkFields
+     * @param runId
+     * @param fromSeq first sequence number, inclusive
+     * @param toSeq last sequence number, exclusive
+     * @return
+     */
+    public static QueryParameters buildStagingRefreshQuery(InputParametersVO inputParameters, List<String> pkFields,
+        String runId, int fromSeq, int toSeq) {
+
+        String query = "SELECT * FROM " + inputParameters.getDatabaseName() + "." + inputParameters.getViewName()
+            + " WHERE " + pkFields.get(0) + " IN (SELECT pk_value FROM " + inputParameters.getStagingView()
+            + " WHERE run_id = ? AND seq >= ? AND seq < ?) " + CACHE_PRELOAD_CONTEXT;
+
+        QueryParameters queryParameters = new QueryParameters();
+        queryParameters.setQuery(query);
+        queryParameters.setParameters(new Object[]{runId, Integer.valueOf(fromSeq), Integer.valueOf(toSeq)});
+        queryParameters.setChunkSize(toSeq - fromSeq);
+        return queryParameters;
+    }
+
+    /**
+     * Builds the query that loads into cache all the rows of the given values of the partition column
+     *
+     * @param inputParameters
+     * @param partitionValues values of the partition column. If it is empty, the rows with NULL value are loaded
+     * @param rows number of changed rows in the partitions
+     * @return
+     */
+    public static QueryParameters buildPartitionRefreshQuery(InputParametersVO inputParameters,
+        List<Object> partitionValues, int rows) {
+
+        List<String> partitionColumn = new ArrayList<>();
+        partitionColumn.add(inputParameters.getPartitionColumn());
+        String condition = partitionValues.isEmpty() ? inputParameters.getPartitionColumn() + " IS NULL"
+            : buildPkCondition(partitionColumn, partitionValues.size());
+        String query = "SELECT * FROM " + inputParameters.getDatabaseName() + "." + inputParameters.getViewName()
+            + " WHERE " + condition + " " + CACHE_PRELOAD_CONTEXT;
+
+        QueryParameters queryParameters = new QueryParameters();
+        queryParameters.setQuery(query);
+        queryParameters.setParameters(partitionValues.toArray());
+        queryParameters.setChunkSize(rows);
+        return queryParameters;
+    }
+
+    /**
+     * Builds the query that replaces all the rows of the view in cache
+     *
+     * @param inputParameters
+     * @param rows number of changed rows
+     * @return
+     */
+    public static QueryParameters buildFullRefreshQuery(InputParametersVO inputParameters, int rows) {
+
+        String query = "SELECT * FROM " + inputParameters.getDatabaseName() + "." + inputParameters.getViewName()
+            + " CONTEXT('cache_preload'='true','cache_invalidate'='all_rows',"
+            + "'returnqueryresults'='false','cache_wait_for_load'='true')";
+
+        QueryParameters queryParameters = new QueryParameters();
+        queryParameters.setQuery(query);
+        queryParameters.setParameters(new Object[0]);
+        queryParameters.setChunkSize(rows);
+        return queryParameters;
+    }
+
+    /**
+     * Splits the PK values in chunks of 'num_elements_in_clause' elements and builds the query that loads each chunk
+     * into cache
+     *
+     * @param inputParameters
+     * @param pkFields
+     * @param keys PK values, one array per row
+     * @return
+     */
+    public static List<QueryParameters> buildRefreshQueries(InputParametersVO inputParameters, List<String> pkFields,
+        List<Object[]> keys) {
+
+        List<QueryParameters> queryList = new ArrayList<>();
+        int chunkSize = inputParameters.getNumElementsInClause().intValue();
+        for (int i = 0; i < keys.size(); i += chunkSize) {
+            queryList.add(buildRefreshQuery(inputParameters, pkFields,
+                keys.subList(i, Math.min(i + chunkSize, keys.size()))));
+        }
+        return queryList;
+    }
+
+    /**
+     * Builds the query that reads the rows with the given PK values, from the source or from the cache depending
+     * on the 'cache' context value
+     *
+     * @param inputParameters
+     * @param pkFields
+     * @param keys PK values, one array per row
+     * @param cacheOn true to read the rows from the cache, false to read them from the source
+     * @return
+     */
+    public static QueryParameters buildSelectQuery(InputParametersVO inputParameters, List<String> pkFields,
+        List<Object[]> keys, boolean cacheOn) {
+
+        String query = "SELECT * FROM " + inputParameters.getDatabaseName() + "." + inputParameters.getViewName()
+            + " WHERE " + buildPkCondition(pkFields, keys.size())
+            + " CONTEXT('cache'='" + (cacheOn ? "on" : "off") + "')";
+
+        return buildQueryParameters(query, keys);
+    }
+
+    private static QueryParameters buildQueryParameters(String query, List<Object[]> keys) {
+
+        List<Object> parameters = new ArrayList<>();
+        for (Object[] key : keys) {
+            for (Object value : key) {
+                parameters.add(value);
+            }
+        }
+
+        QueryParameters queryParameters = new QueryParameters();
+        queryParameters.setQuery(query);
+        queryParameters.setParameters(parameters.toArray());
+        queryParameters.setChunkSize(keys.size());
+        queryParameters.setKeys(new ArrayList<>(keys));
+        return queryParameters;
+    }
+
+    /**
+     * We have two ways of building the PK condition (also used for the partition column):
+     *  1) The PK is simple -> IN clause with a list of parameters (?)
+     *  2) The PK is multiple -> Sequence of OR clauses with (pk_field1 = ? AND pk_field2 = ?...)
+     */
+    private static String buildPkCondition(List<String> pkFields, int numKeys) {
+
+        StringBuilder condition = new StringBuilder();
+
+        if (pkFields.size() == 1) {
+
+            // PK is one only field
+            condition.append(pkFields.get(0)).append(" IN (");
+            for (int i = 0; i < numKeys; i++) {
+                if (i > 0) {
+                    condition.append(",");
+                }
+                condition.append("?");
+            }
+            condition.append(")");
+
+        } else {
+
+            // PK has two or more fields
+            // The OR clause is always the same. We only need to calculate it once and then append it the requested times
+            String orClause = createOrClause(pkFields);
+            for (int i = 0; i < numKeys; i++) {
+                if (i > 0) {
+                    condition.append("OR");
+                }
+                condition.append(orClause);
+            }
+        }
+
+        return condition.toString();
+    }
+
+    // The PK fields are quoted, so the names are compared without quotes
+    private static boolean containsField(List<String> fields, String field) {
+        String name = field.replace("\"", "");
+        for (String f : fields) {
+            if (f.replace("\"", "").equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String createOrClause(List<String> pkFields) {
+        List<String> conditions = new ArrayList<>();
+        for (String pkField : pkFields) {
+            conditions.add(pkField + " = ? ");
+        }
+        // Build an OR clause with all the PK elements splitted by the AND clause
+        return " (" + Utils.join(conditions, " AND ") + ") ";
+    }
+}
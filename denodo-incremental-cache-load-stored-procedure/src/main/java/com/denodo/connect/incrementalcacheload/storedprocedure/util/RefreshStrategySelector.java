@@ -0,0 +1,306 @@
+package com.denodo.connect.incrementalcacheload.storedprocedure.util;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.denodo.vdb.engine.storedprocedure.DatabaseEnvironment;
+import com.denodo.vdb.engine.storedprocedure.StoredProcedureException;
+
+/**
+ * Chooses how the cache of a view is refreshed, comparing the estimated cost of each strategy:
+ *  - keys: chunks of 'num_elements_in_clause' PK values (IN or OR clauses).
+ *  - ranges: chunks of 'num_elements_in_clause' consecutive PK values refreshed as a range of the PK. The rows
+ *    between the PK values of the chunk are refreshed too. Only for single field PKs.
+ *  - partition: all the rows of the values of the partition column that have changed rows.
+ *  - full: all the rows of the view, with cache_invalidate='all_rows'.
+ *  - staging: the PK values are inserted in a staging table of the cache database and refreshed with a semi-join.
+ *    Only for single field PKs and when the staging table is configured.
+ *
+ * The estimation is based on the number of rows matching the last update condition in the source, the number of
+ * rows of the cached view and their PK and partition column statistics. The statistics of the cached view are reused
+ * by the loads of the view for the seconds set in the Java system property
+ * com.denodo.connect.incrementalcacheload.cachedViewStatisticsSeconds (default 3600, 0 disables the reuse). No
+ * statistics are read when the strategy is requested, except the number of changed rows of the full strategy.
+ *
+ */
+public class RefreshStrategySelector {
+
+    private static final Logger logger = Logger.getLogger(RefreshStrategySelector.class);
+
+    public static final String STRATEGY_AUTO = "auto";
+    public static final String STRATEGY_KEYS = "keys";
+    public static final String STRATEGY_RANGES = "ranges";
+    public static final String STRATEGY_PARTITION = "partition";
+    public static final String STRATEGY_FULL = "full";
+    public static final String STRATEGY_STAGING = "staging";
+    public static final List<String> STRATEGIES = Arrays.asList(STRATEGY_AUTO, STRATEGY_KEYS, STRATEGY_RANGES,
+        STRATEGY_PARTITION, STRATEGY_FULL, STRATEGY_STAGING);
+
+    // Costs are measured in rows loaded into cache. Each query has a fixed overhead (parsing, round trips, cache load
+    // process) and each bound parameter has a cost similar to a loaded row
+    private static final double STATEMENT_COST = 1000;
+    private static final double PARAMETER_COST = 1;
+    // PK values are inserted in the staging table in JDBC batches
+    private static final double STAGING_INSERT_COST = 0.1;
+
+    public static final String CACHED_VIEW_STATISTICS_SECONDS =
+        "com.denodo.connect.incrementalcacheload.cachedViewStatisticsSeconds";
+    private static final int DEFAULT_CACHED_VIEW_STATISTICS_SECONDS = 3600;
+    // Statistics of the cached views, by view and partition column
+    private static final Map<String, ViewStatistics> CACHED_VIEW_STATISTICS = new ConcurrentHashMap<>();
+
+    private final DatabaseEnvironment environment;
+    private final InputParametersVO inputParameters;
+    private final List<String> pkFields;
+
+    public RefreshStrategySelector(DatabaseEnvironment environment, InputParametersVO inputParameters,
+        List<String> pkFields) {
+        this.environment = environment;
+        this.inputParameters = inputParameters;
+        this.pkFields = pkFields;
+    }
+
+    /**
+     * Returns the strategy requested in the 'refresh_strategy' option or, if it is 'auto', the one with the lowest
+     * estimated cost
+     *
+     * @return
+     * @throws StoredProcedureException if the requested strategy cannot be used with the view
+     */
+    public RefreshPlan select() throws StoredProcedureException {
+
+        String requested = this.inputParameters.getRefreshStrategy();
+        boolean singlePk = this.pkFields.size() == 1;
+        String partitionColumn = this.inputParameters.getPartitionColumn();
+        if (partitionColumn != null) {
+            // The partition column is written in the queries, so it has to be a field of the view
+            partitionColumn = Utils.getViewField(this.environment, this.inputParameters.getDatabaseName(),
+                this.inputParameters.getViewName(), Utils.OPTION_PARTITION_COLUMN, partitionColumn);
+            this.inputParameters.setPartitionColumn(partitionColumn);
+        }
+        String clusteringColumn = this.inputParameters.getClusteringColumn();
+        if (clusteringColumn != null
+            && RefreshQueryBuilder.CHUNK_ORDER_PK.equals(this.inputParameters.getChunkOrder())) {
+            // The same applies to the clustering column, that is compared with the quoted PK fields
+            this.inputParameters.setClusteringColumn(Utils.getViewField(this.environment,
+                this.inputParameters.getDatabaseName(), this.inputParameters.getViewName(),
+                Utils.OPTION_CLUSTERING_COLUMN, clusteringColumn));
+        }
+
+        if (STRATEGY_RANGES.equals(requested) && !singlePk) {
+            throw new StoredProcedureException("refresh_strategy 'ranges' is only valid for views with a single "
+                + "field PK.");
+        }
+        if (STRATEGY_PARTITION.equals(requested) && partitionColumn == null) {
+            throw new StoredProcedureException("refresh_strategy 'partition' requires the 'partition_column' option.");
+        }
+        boolean stagingConfigured = this.inputParameters.getStagingTable() != null;
+        if (STRATEGY_STAGING.equals(requested) && (!singlePk || !stagingConfigured)) {
+            throw new StoredProcedureException("refresh_strategy 'staging' is only valid for views with a single "
+                + "field PK and requires the 'staging_table' and 'staging_view' options.");
+        }
+
+        // Cluster-wide loads distribute ranges of the staging table among the servers
+        if (this.inputParameters.getClusterMode() != null) {
+            if (!singlePk || (!STRATEGY_AUTO.equals(requested) && !STRATEGY_STAGING.equals(requested))) {
+                throw new StoredProcedureException("cluster_mode is only valid for views with a single field PK and "
+                    + "the 'staging' refresh_strategy.");
+            }
+            return new RefreshPlan(STRATEGY_STAGING, -1, "strategy=staging (cluster_mode="
+                + this.inputParameters.getClusterMode() + ")");
+        }
+
+        // Per-key chunks do not need any estimation
+        if (STRATEGY_KEYS.equals(requested)) {
+            return new RefreshPlan(STRATEGY_KEYS, -1, "strategy=keys (requested)");
+        }
+        if (this.inputParameters.isSkipUnchangedRows() && STRATEGY_AUTO.equals(requested)) {
+            return new RefreshPlan(STRATEGY_KEYS, -1, "strategy=keys (skip_unchanged_rows compares rows by PK)");
+        }
+
+        if (STRATEGY_FULL.equals(requested)) {
+            // The changed rows are recorded in the run history
+            ViewStatistics delta = getStatistics(false);
+            return new RefreshPlan(requested, delta.rows, "strategy=" + requested + " (requested); delta rows="
+                + delta.rows);
+        }
+        if (!STRATEGY_AUTO.equals(requested)) {
+            return new RefreshPlan(requested, -1, "strategy=" + requested + " (requested)");
+        }
+        ViewStatistics delta = getStatistics(false);
+        ViewStatistics view = getCachedViewStatistics();
+
+        // Estimated cost of each strategy
+        long n = this.inputParameters.getNumElementsInClause().longValue();
+        Map<String, Double> costs = new LinkedHashMap<>();
+        costs.put(STRATEGY_KEYS, Double.valueOf(chunks(delta.rows, n) * STATEMENT_COST
+            + delta.rows * (1 + PARAMETER_COST * this.pkFields.size())));
+
+        if (singlePk && delta.min instanceof Number && delta.max instanceof Number && view.min instanceof Number
+            && view.max instanceof Number) {
+            double deltaSpan = ((Number) delta.max).doubleValue() - ((Number) delta.min).doubleValue() + 1;
+            double viewSpan = ((Number) view.max).doubleValue() - ((Number) view.min).doubleValue() + 1;
+            if (viewSpan > 0) {
+                // Rows of the cache inside the PK span of the changed rows, assuming they are evenly distributed
+                double rows = Math.max(delta.rows, Math.min(view.rows, view.rows * deltaSpan / viewSpan));
+                costs.put(STRATEGY_RANGES, Double.valueOf(chunks(delta.rows, n) * STATEMENT_COST + rows));
+            }
+        }
+
+        if (partitionColumn != null && view.partitions > 0) {
+            // Rows of the cache in the partitions of the changed rows, assuming partitions of the same size
+            double rows = Math.max(delta.rows, view.rows * (double) delta.partitions / view.partitions);
+            costs.put(STRATEGY_PARTITION, Double.valueOf(chunks(delta.partitions, n) * STATEMENT_COST + rows
+                + delta.partitions * PARAMETER_COST));
+        }
+
+        if (singlePk && stagingConfigured) {
+            costs.put(STRATEGY_STAGING, Double.valueOf(chunks(delta.rows, this.inputParameters.getStagingChunkSize())
+                * STATEMENT_COST + delta.rows * (1 + STAGING_INSERT_COST)));
+        }
+
+        // If the cache is empty, a full reload has to load at least the changed rows
+        costs.put(STRATEGY_FULL, Double.valueOf(STATEMENT_COST + Math.max(view.rows, delta.rows)));
+
+        String strategy = STRATEGY_KEYS;
+        for (Map.Entry<String, Double> cost : costs.entrySet()) {
+            if (cost.getValue().doubleValue() < costs.get(strategy).doubleValue()) {
+                strategy = cost.getKey();
+            }
+        }
+
+        StringBuilder details = new StringBuilder();
+        details.append("strategy=").append(strategy).append(" (lowest estimated cost); delta rows=")
+            .append(delta.rows).append(", cached rows=").append(view.rows);
+        if (partitionColumn != null) {
+            details.append(", delta partitions=").append(delta.partitions).append(", cached partitions=")
+                .append(view.partitions);
+        }
+        details.append("; estimated costs:");
+        for (Map.Entry<String, Double> cost : costs.entrySet()) {
+            details.append(" ").append(cost.getKey()).append("=").append(Math.round(cost.getValue().doubleValue()));
+        }
+
+        RefreshPlan plan = new RefreshPlan(strategy, delta.rows, details.toString());
+        logger.debug("select(): " + plan);
+        return plan;
+    }
+
+    private static long chunks(long rows, long chunkSize) {
+        return (rows + chunkSize - 1) / chunkSize;
+    }
+
+    /**
+     * Statistics of the cached view, read again when they are older than the configured time
+     */
+    private ViewStatistics getCachedViewStatistics() throws StoredProcedureException {
+
+        ViewStatistics statistics = CACHED_VIEW_STATISTICS.get(getStatisticsKey());
+        if (statistics != null && System.nanoTime() - statistics.readAt < getStatisticsMaxAge()) {
+            logger.debug("getCachedViewStatistics(): reusing statistics of " + getStatisticsKey());
+            return statistics;
+        }
+        return readCachedViewStatistics();
+    }
+
+    /**
+     * Number of rows of the view in the cache. They are read again, as the cached view statistics, after a full
+     * refresh, that loads all the rows of the view
+     *
+     * @return
+     * @throws StoredProcedureException
+     */
+    public long countCachedRows() throws StoredProcedureException {
+        return readCachedViewStatistics().rows;
+    }
+
+    private ViewStatistics readCachedViewStatistics() throws StoredProcedureException {
+
+        ViewStatistics statistics = getStatistics(true);
+        if (getStatisticsMaxAge() > 0) {
+            CACHED_VIEW_STATISTICS.put(getStatisticsKey(), statistics);
+        }
+        return statistics;
+    }
+
+    private String getStatisticsKey() {
+        return this.inputParameters.getDatabaseName().replace("\"", "") + "."
+            + this.inputParameters.getViewName().replace("\"", "") + "|" + this.inputParameters.getPartitionColumn();
+    }
+
+    private static long getStatisticsMaxAge() {
+        return TimeUnit.SECONDS.toNanos(Integer.getInteger(CACHED_VIEW_STATISTICS_SECONDS,
+            DEFAULT_CACHED_VIEW_STATISTICS_SECONDS).intValue());
+    }
+
+    /**
+     * Number of rows, PK range and number of partitions of the rows matching the last update condition in the source,
+     * or of all the rows of the view in the cache
+     */
+    private ViewStatistics getStatistics(boolean cachedView) throws StoredProcedureException {
+
+        boolean singlePk = this.pkFields.size() == 1;
+        String partitionColumn = this.inputParameters.getPartitionColumn();
+
+        StringBuilder query = new StringBuilder("SELECT COUNT(*)");
+        if (singlePk) {
+            query.append(", MIN(").append(this.pkFields.get(0)).append("), MAX(").append(this.pkFields.get(0))
+                .append(")");
+        }
+        if (partitionColumn != null) {
+            query.append(", COUNT(DISTINCT ").append(partitionColumn).append(")");
+        }
+        query.append(" FROM ").append(this.inputParameters.getDatabaseName()).append(".")
+            .append(this.inputParameters.getViewName());
+        if (cachedView) {
+            query.append(" CONTEXT('cache'='on')");
+        } else {
+            query.append(" WHERE ").append(this.inputParameters.getLastUpdateCondition())
+                .append(" CONTEXT('cache'='off')");
+        }
+
+        ViewStatistics statistics = new ViewStatistics();
+        statistics.readAt = System.nanoTime();
+        ResultSet rs = null;
+        try {
+            logger.debug("getStatistics(): query = " + query);
+            rs = this.environment.executeQuery(query.toString());
+            if (rs.next()) {
+                int column = 1;
+                statistics.rows = rs.getLong(column++);
+                if (singlePk) {
+                    statistics.min = rs.getObject(column++);
+                    statistics.max = rs.getObject(column++);
+                }
+                if (partitionColumn != null) {
+                    statistics.partitions = rs.getLong(column++);
+                }
+            }
+        } catch (SQLException e) {
+            logger.debug("ERROR in getStatistics(): ", e);
+            throw new StoredProcedureException("ERROR estimating the rows to update in cache: " + e.getMessage(), e);
+        } finally {
+            DBUtils.closeRs(rs);
+        }
+
+        return statistics;
+    }
+
+    private static class ViewStatistics {
+
+        private long rows;
+        private Object min;
+        private Object max;
+        private long partitions;
+        // System.nanoTime() when they were read
+        private long readAt;
+    }
+}
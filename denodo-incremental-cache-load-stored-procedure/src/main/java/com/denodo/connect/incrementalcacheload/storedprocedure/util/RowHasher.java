@@ -0,0 +1,177 @@
+package com.denodo.connect.incrementalcacheload.storedprocedure.util;
+
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import com.denodo.vdb.engine.storedprocedure.StoredProcedureException;
+
+/**
+ * Utility class for calculating the hash of the rows of a view, so the rows read from the source and from the cache
+ * can be compared without keeping their values in memory
+ *
+ */
+public class RowHasher {
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    // Hash of the PK values with several rows, that never matches any other hash. Compared by reference
+    private static final byte[] DUPLICATE_KEY = new byte[0];
+
+    /**
+     * Calculates the hash of all the columns of the current row of the result set
+     *
+     * @param rs
+     * @param columnCount
+     * @return
+     * @throws SQLException
+     */
+    public static byte[] hash(ResultSet rs, int columnCount) throws SQLException {
+
+        MessageDigest digest = newDigest();
+        for (int i = 1; i <= columnCount; i++) {
+            Object value = rs.getObject(i);
+            // Each value is preceded by its length so ("ab", "c") and ("a", "bc") have different hashes
+            String normalized = value == null ? "" : normalize(value);
+            digest.update((value == null ? "N" : normalized.length() + ":").getBytes(StandardCharsets.UTF_8));
+            digest.update(normalized.getBytes(StandardCharsets.UTF_8));
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Returns the position of the PK fields in the result set columns
+     *
+     * @param metaData
+     * @param pkFields PK fields surrounded by double quotes
+     * @return
+     * @throws SQLException
+     * @throws StoredProcedureException if a PK field is not returned by the query
+     */
+    public static int[] getPkColumnIndexes(ResultSetMetaData metaData, List<String> pkFields)
+        throws SQLException, StoredProcedureException {
+
+        int[] pkIndexes = new int[pkFields.size()];
+        for (int i = 0; i < pkFields.size(); i++) {
+            String pkField = pkFields.get(i).replace("\"", "");
+            for (int j = 1; j <= metaData.getColumnCount(); j++) {
+                if (pkField.equalsIgnoreCase(metaData.getColumnLabel(j))) {
+                    pkIndexes[i] = j;
+                    break;
+                }
+            }
+            if (pkIndexes[i] == 0) {
+                throw new StoredProcedureException("PK field " + pkFields.get(i) + " not found in the view columns");
+            }
+        }
+        return pkIndexes;
+    }
+
+    /**
+     * Returns the PK values of the current row of the result set as a list, so they can be used as a map key
+     *
+     * @param rs
+     * @param pkIndexes
+     * @return
+     * @throws SQLException
+     */
+    public static List<Object> getKey(ResultSet rs, int[] pkIndexes) throws SQLException {
+        List<Object> key = new ArrayList<>(pkIndexes.length);
+        for (int pkIndex : pkIndexes) {
+            key.add(normalizeKeyValue(rs.getObject(pkIndex)));
+        }
+        return key;
+    }
+
+    /**
+     * Returns the PK values as a list, so they can be compared with the ones returned by getKey()
+     *
+     * @param key
+     * @return
+     */
+    public static List<Object> toKey(Object[] key) {
+        List<Object> ret = new ArrayList<>(key.length);
+        for (Object value : key) {
+            ret.add(normalizeKeyValue(value));
+        }
+        return ret;
+    }
+
+    /**
+     * Adds the hash of a row to the hashes of its result set. The view PK is not enforced, so a PK value can have
+     * several rows: only one hash is kept for them, that does not match any other one, so their rows are always
+     * considered different
+     *
+     * @param hashes
+     * @param key
+     * @param hash
+     */
+    public static void putHash(Map<List<Object>, byte[]> hashes, List<Object> key, byte[] hash) {
+        if (hashes.put(key, hash) != null) {
+            hashes.put(key, DUPLICATE_KEY);
+        }
+    }
+
+    public static boolean sameHash(byte[] hash1, byte[] hash2) {
+        return hash1 != null && hash1 != DUPLICATE_KEY && hash2 != DUPLICATE_KEY && Arrays.equals(hash1, hash2);
+    }
+
+    private static Object normalizeKeyValue(Object value) {
+        // Numeric values may be returned with different types or scales by the source and the cache database, and
+        // arrays are not equal by content
+        return value instanceof Number || (value != null && value.getClass().isArray()) ? normalize(value) : value;
+    }
+
+    private static String normalize(Object value) {
+        if (value instanceof BigDecimal) {
+            return ((BigDecimal) value).stripTrailingZeros().toPlainString();
+        }
+        if (value instanceof Number) {
+            try {
+                return new BigDecimal(value.toString()).stripTrailingZeros().toPlainString();
+            } catch (NumberFormatException e) {
+                // NaN and infinite values
+                return value.toString();
+            }
+        }
+        if (value instanceof byte[]) {
+            // Binary values (BLOB, VARBINARY) are compared by content
+            return toHex((byte[]) value);
+        }
+        if (value.getClass().isArray()) {
+            List<String> elements = new ArrayList<>(Array.getLength(value));
+            for (int i = 0; i < Array.getLength(value); i++) {
+                Object element = Array.get(value, i);
+                elements.add(element == null ? null : normalize(element));
+            }
+            return elements.toString();
+        }
+        return String.valueOf(value);
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
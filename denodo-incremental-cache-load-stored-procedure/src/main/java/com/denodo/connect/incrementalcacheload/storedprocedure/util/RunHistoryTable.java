@@ -0,0 +1,140 @@
+package com.denodo.connect.incrementalcacheload.storedprocedure.util;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * History table of the cache database where the statistics of each incremental cache load are stored, so the chunk
+ * size and the concurrency of the next loads of a view can be tuned.
+ *
+ * The history table has to be created in the cache database with these columns:
+ *   run_id (text, 36 characters), database_name (text), view_name (text), start_time (big integer),
+ *   strategy (text, 20 characters), delta_rows (big integer), updated_rows (integer), chunk_size (integer),
+ *   concurrency (integer), chunks (integer), latency_p50_ms (big integer), latency_p90_ms (big integer),
+ *   latency_p99_ms (big integer), latency_max_ms (big integer), errors (integer), error_message (text, 1000
+ *   characters), cancelled (integer, 1 if the load was cancelled), refresh_ms (big integer), total_ms (big integer),
+ *   with PRIMARY KEY (run_id)
+ *
+ */
+public class RunHistoryTable {
+
+    private static final int MAX_ERROR_MESSAGE_LENGTH = 1000;
+
+    private final String tableName;
+
+    public RunHistoryTable(String tableName) {
+        this.tableName = tableName;
+    }
+
+    /**
+     * Inserts the statistics of a load
+     *
+     * @param connection
+     * @param run
+     * @throws SQLException
+     */
+    public void record(Connection connection, RunRecord run) throws SQLException {
+
+        PreparedStatement ps = null;
+        try {
+            ps = connection.prepareStatement("INSERT INTO " + this.tableName + " (run_id, database_name, view_name, "
+                + "start_time, strategy, delta_rows, updated_rows, chunk_size, concurrency, chunks, latency_p50_ms, "
+                + "latency_p90_ms, latency_p99_ms, latency_max_ms, errors, error_message, cancelled, refresh_ms, "
+                + "total_ms) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+            int i = 1;
+            ps.setString(i++, run.getRunId());
+            ps.setString(i++, run.getDatabaseName());
+            ps.setString(i++, run.getViewName());
+            ps.setLong(i++, run.getStartTime());
+            ps.setString(i++, run.getStrategy());
+            ps.setLong(i++, run.getDeltaRows());
+            ps.setInt(i++, run.getUpdatedRows());
+            ps.setInt(i++, run.getChunkSize());
+            ps.setInt(i++, run.getConcurrency());
+            ps.setInt(i++, run.getChunks());
+            ps.setLong(i++, run.getLatencyP50Millis());
+            ps.setLong(i++, run.getLatencyP90Millis());
+            ps.setLong(i++, run.getLatencyP99Millis());
+            ps.setLong(i++, run.getLatencyMaxMillis());
+            ps.setInt(i++, run.getErrors());
+            String errorMessage = run.getErrorMessage();
+            if (errorMessage == null) {
+                ps.setNull(i++, Types.VARCHAR);
+            } else {
+                ps.setString(i++, errorMessage.length() > MAX_ERROR_MESSAGE_LENGTH
+                    ? errorMessage.substring(0, MAX_ERROR_MESSAGE_LENGTH) : errorMessage);
+            }
+            ps.setInt(i++, run.isCancelled() ? 1 : 0);
+            ps.setLong(i++, run.getRefreshMillis());
+            ps.setLong(i++, run.getTotalMillis());
+            ps.executeUpdate();
+            if (!connection.getAutoCommit()) {
+                connection.commit();
+            }
+        } finally {
+            DBUtils.closePs(ps);
+        }
+    }
+
+    /**
+     * Returns the statistics of the last loads of a view, the most recent first
+     *
+     * @param connection
+     * @param databaseName
+     * @param viewName
+     * @param maxRuns
+     * @return
+     * @throws SQLException
+     */
+    public List<RunRecord> getRecentRuns(Connection connection, String databaseName, String viewName, int maxRuns)
+        throws SQLException {
+
+        List<RunRecord> runs = new ArrayList<>();
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            ps = connection.prepareStatement("SELECT run_id, start_time, strategy, delta_rows, updated_rows, "
+                + "chunk_size, concurrency, chunks, latency_p50_ms, latency_p90_ms, latency_p99_ms, latency_max_ms, "
+                + "errors, error_message, cancelled, refresh_ms, total_ms FROM " + this.tableName
+                + " WHERE database_name = ? AND view_name = ? ORDER BY start_time DESC");
+            ps.setString(1, databaseName);
+            ps.setString(2, viewName);
+            ps.setMaxRows(maxRuns);
+            rs = ps.executeQuery();
+            while (rs.next()) {
+                int i = 1;
+                RunRecord run = new RunRecord();
+                run.setRunId(rs.getString(i++));
+                run.setDatabaseName(databaseName);
+                run.setViewName(viewName);
+                run.setStartTime(rs.getLong(i++));
+                run.setStrategy(rs.getString(i++));
+                run.setDeltaRows(rs.getLong(i++));
+                run.setUpdatedRows(rs.getInt(i++));
+                run.setChunkSize(rs.getInt(i++));
+                run.setConcurrency(rs.getInt(i++));
+                run.setChunks(rs.getInt(i++));
+                run.setLatencyP50Millis(rs.getLong(i++));
+                run.setLatencyP90Millis(rs.getLong(i++));
+                run.setLatencyP99Millis(rs.getLong(i++));
+                run.setLatencyMaxMillis(rs.getLong(i++));
+                run.setErrors(rs.getInt(i++));
+                run.setErrorMessage(rs.getString(i++));
+                run.setCancelled(rs.getInt(i++) == 1);
+                run.setRefreshMillis(rs.getLong(i++));
+                run.setTotalMillis(rs.getLong(i++));
+                runs.add(run);
+            }
+        } finally {
+            DBUtils.closeRs(rs);
+            DBUtils.closePs(ps);
+        }
+
+        return runs;
+    }
+}
@@ -0,0 +1,251 @@
+package com.denodo.connect.incrementalcacheload.storedprocedure.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Statistics of an incremental cache load, stored in the run history table
+ *
+ */
+public class RunRecord {
+
+    private String runId;
+    private String databaseName;
+    private String viewName;
+    private long startTime;
+    private String strategy;
+    private long deltaRows;
+    private int updatedRows;
+    private int chunkSize;
+    private int concurrency;
+    private int chunks;
+    private long latencyP50Millis;
+    private long latencyP90Millis;
+    private long latencyP99Millis;
+    private long latencyMaxMillis;
+    private int errors;
+    private String errorMessage;
+    // The load was cancelled, so its error says nothing about its configuration
+    private boolean cancelled;
+    private long refreshMillis;
+    private long totalMillis;
+
+    public RunRecord() {
+        super();
+    }
+
+    public String getRunId() {
+        return this.runId;
+    }
+
+    public void setRunId(String runId) {
+        this.runId = runId;
+    }
+
+    public String getDatabaseName() {
+        return this.databaseName;
+    }
+
+    public void setDatabaseName(String databaseName) {
+        this.databaseName = databaseName;
+    }
+
+    public String getViewName() {
+        return this.viewName;
+    }
+
+    public void setViewName(String viewName) {
+        this.viewName = viewName;
+    }
+
+    public long getStartTime() {
+        return this.startTime;
+    }
+
+    public void setStartTime(long startTime) {
+        this.startTime = startTime;
+    }
+
+    public String getStrategy() {
+        return this.strategy;
+    }
+
+    public void setStrategy(String strategy) {
+        this.strategy = strategy;
+    }
+
+    public long getDeltaRows() {
+        return this.deltaRows;
+    }
+
+    public void setDeltaRows(long deltaRows) {
+        this.deltaRows = deltaRows;
+    }
+
+    public int getUpdatedRows() {
+        return this.updatedRows;
+    }
+
+    public void setUpdatedRows(int updatedRows) {
+        this.updatedRows = updatedRows;
+    }
+
+    public int getChunkSize() {
+        return this.chunkSize;
+    }
+
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    public int getConcurrency() {
+        return this.concurrency;
+    }
+
+    public void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    public int getChunks() {
+        return this.chunks;
+    }
+
+    public void setChunks(int chunks) {
+        this.chunks = chunks;
+    }
+
+    public long getLatencyP50Millis() {
+        return this.latencyP50Millis;
+    }
+
+    public void setLatencyP50Millis(long latencyP50Millis) {
+        this.latencyP50Millis = latencyP50Millis;
+    }
+
+    public long getLatencyP90Millis() {
+        return this.latencyP90Millis;
+    }
+
+    public void setLatencyP90Millis(long latencyP90Millis) {
+        this.latencyP90Millis = latencyP90Millis;
+    }
+
+    public long getLatencyP99Millis() {
+        return this.latencyP99Millis;
+    }
+
+    public void setLatencyP99Millis(long latencyP99Millis) {
+        this.latencyP99Millis = latencyP99Millis;
+    }
+
+    public long getLatencyMaxMillis() {
+        return this.latencyMaxMillis;
+    }
+
+    public void setLatencyMaxMillis(long latencyMaxMillis) {
+        this.latencyMaxMillis = latencyMaxMillis;
+    }
+
+    public int getErrors() {
+        return this.errors;
+    }
+
+    public void setErrors(int errors) {
+        this.errors = errors;
+    }
+
+    public String getErrorMessage() {
+        return this.errorMessage;
+    }
+
+    public void setErrorMessage(String errorMessage) {
+        this.errorMessage = errorMessage;
+    }
+
+    public boolean isCancelled() {
+        return this.cancelled;
+    }
+
+    public void setCancelled(boolean cancelled) {
+        this.cancelled = cancelled;
+    }
+
+    public long getRefreshMillis() {
+        return this.refreshMillis;
+    }
+
+    public void setRefreshMillis(long refreshMillis) {
+        this.refreshMillis = refreshMillis;
+    }
+
+    public long getTotalMillis() {
+        return this.totalMillis;
+    }
+
+    public void setTotalMillis(long totalMillis) {
+        this.totalMillis = totalMillis;
+    }
+
+    /**
+     * Sets the number of chunks and the percentiles of their latency
+     *
+     * @param latencies latency of each executed chunk, in milliseconds
+     */
+    public void setChunkLatencies(List<Long> latencies) {
+
+        List<Long> sorted = new ArrayList<>(latencies);
+        Collections.sort(sorted);
+        this.chunks = sorted.size();
+        this.latencyP50Millis = percentile(sorted, 50);
+        this.latencyP90Millis = percentile(sorted, 90);
+        this.latencyP99Millis = percentile(sorted, 99);
+        this.latencyMaxMillis = sorted.isEmpty() ? 0 : sorted.get(sorted.size() - 1).longValue();
+    }
+
+    /**
+     * Rows loaded into cache per second by the cache update queries, or -1 if the load failed or did not update rows
+     *
+     * @return
+     */
+    public double getThroughput() {
+        if (this.errors > 0 || this.errorMessage != null || this.updatedRows <= 0 || this.refreshMillis <= 0) {
+            return -1;
+        }
+        return this.updatedRows * 1000.0 / this.refreshMillis;
+    }
+
+    // Nearest-rank percentile
+    private static long percentile(List<Long> sorted, int percentile) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.size());
+        return sorted.get(Math.max(rank, 1) - 1).longValue();
+    }
+
+    @Override
+    public String toString() {
+        return "RunRecord{" +
+                "runId='" + runId + '\'' +
+                ", databaseName='" + databaseName + '\'' +
+                ", viewName='" + viewName + '\'' +
+                ", startTime=" + startTime +
+                ", strategy='" + strategy + '\'' +
+                ", deltaRows=" + deltaRows +
+                ", updatedRows=" + updatedRows +
+                ", chunkSize=" + chunkSize +
+                ", concurrency=" + concurrency +
+                ", chunks=" + chunks +
+                ", latencyP50Millis=" + latencyP50Millis +
+                ", latencyP90Millis=" + latencyP90Millis +
+                ", latencyP99Millis=" + latencyP99Millis +
+                ", latencyMaxMillis=" + latencyMaxMillis +
+                ", errors=" + errors +
+                ", errorMessage='" + errorMessage + '\'' +
+                ", cancelled=" + cancelled +
+                ", refreshMillis=" + refreshMillis +
+                ", totalMillis=" + totalMillis +
+                '}';
+    }
+}
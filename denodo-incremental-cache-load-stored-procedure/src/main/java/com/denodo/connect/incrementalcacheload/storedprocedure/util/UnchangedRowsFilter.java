@@ -0,0 +1,87 @@
+package com.denodo.connect.incrementalcacheload.storedprocedure.util;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.denodo.vdb.engine.storedprocedure.DatabaseEnvironment;
+import com.denodo.vdb.engine.storedprocedure.StoredProcedureException;
+
+/**
+ * Removes from a chunk of PK values the ones whose rows are identical in the source and in the cache, so only the
+ * rows that have really changed are loaded into the cache. It compares a hash of all the columns of the view, that is
+ * calculated reading the rows of the chunk with CONTEXT('cache'='off') and CONTEXT('cache'='on').
+ *
+ */
+public class UnchangedRowsFilter {
+
+    private static final Logger logger = Logger.getLogger(UnchangedRowsFilter.class);
+
+    private final DatabaseEnvironment environment;
+    private final InputParametersVO inputParameters;
+    private final List<String> pkFields;
+
+    public UnchangedRowsFilter(DatabaseEnvironment environment, InputParametersVO inputParameters,
+        List<String> pkFields) {
+        this.environment = environment;
+        this.inputParameters = inputParameters;
+        this.pkFields = pkFields;
+    }
+
+    /**
+     * Returns the PK values whose rows are different in the source and in the cache, or are missing in one of them
+     *
+     * @param keys PK values, one array per row
+     * @return
+     * @throws StoredProcedureException
+     */
+    public List<Object[]> getChangedKeys(List<Object[]> keys) throws StoredProcedureException {
+
+        Map<List<Object>, byte[]> sourceHashes = getRowHashes(keys, false);
+        Map<List<Object>, byte[]> cacheHashes = getRowHashes(keys, true);
+
+        List<Object[]> changedKeys = new ArrayList<>();
+        for (Object[] key : keys) {
+            List<Object> mapKey = RowHasher.toKey(key);
+            byte[] sourceHash = sourceHashes.get(mapKey);
+            if (!RowHasher.sameHash(sourceHash, cacheHashes.get(mapKey))) {
+                changedKeys.add(key);
+            }
+        }
+
+        logger.debug("getChangedKeys(): " + changedKeys.size() + " of " + keys.size() + " rows have changed");
+        return changedKeys;
+    }
+
+    private Map<List<Object>, byte[]> getRowHashes(List<Object[]> keys, boolean cacheOn)
+        throws StoredProcedureException {
+
+        QueryParameters query = RefreshQueryBuilder.buildSelectQuery(this.inputParameters, this.pkFields, keys,
+            cacheOn);
+
+        Map<List<Object>, byte[]> hashes = new HashMap<>();
+        ResultSet rs = null;
+        try {
+            rs = this.environment.executeQuery(query.getQuery(), query.getParameters());
+
+            int columnCount = rs.getMetaData().getColumnCount();
+            int[] pkIndexes = RowHasher.getPkColumnIndexes(rs.getMetaData(), this.pkFields);
+            while (rs.next()) {
+                List<Object> key = RowHasher.getKey(rs, pkIndexes);
+                RowHasher.putHash(hashes, key, RowHasher.hash(rs, columnCount));
+            }
+        } catch (SQLException e) {
+            logger.debug("ERROR in getRowHashes(): ", e);
+            throw new StoredProcedureException("ERROR comparing source and cache rows: " + e.getMessage(), e);
+        } finally {
+            DBUtils.closeRs(rs);
+        }
+
+        return hashes;
+    }
+}
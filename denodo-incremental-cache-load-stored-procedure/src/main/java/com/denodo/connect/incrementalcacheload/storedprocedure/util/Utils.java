@@ -4,8 +4,18 @@
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.log4j.Logger;
 
@@ -20,24 +30,55 @@ public class Utils {
     private static String LAST_CACHE_REFRESH = "@LASTCACHEREFRESH";
     private static int CACHE_MODE_FULL = 3;
 
-    private static DatabaseEnvironment environment;
-    private static DatabaseEnvironmentImpl databaseEnvironmentImpl;
+    // Keys accepted in the 'options' input parameter
+    public static final String OPTION_SKIP_UNCHANGED_ROWS = "skip_unchanged_rows";
+    public static final String OPTION_REFRESH_STRATEGY = "refresh_strategy";
+    public static final String OPTION_PARTITION_COLUMN = "partition_column";
+    public static final String OPTION_STAGING_TABLE = "staging_table";
+    public static final String OPTION_STAGING_VIEW = "staging_view";
+    public static final String OPTION_STAGING_CHUNK_SIZE = "staging_chunk_size";
+    public static final String OPTION_CLUSTER_MODE = "cluster_mode";
+    public static final String OPTION_WORK_TABLE = "work_table";
+    public static final String OPTION_LEASE_SECONDS = "lease_seconds";
+    public static final String OPTION_CHUNK_ORDER = "chunk_order";
+    public static final String OPTION_CLUSTERING_COLUMN = "clustering_column";
+    public static final String OPTION_HISTORY_TABLE = "history_table";
+    public static final String OPTION_CONCURRENCY = "concurrency";
+    public static final String OPTION_IN_FLIGHT_KEYS = "in_flight_keys";
+    private static final List<String> VALID_OPTIONS = Arrays.asList(OPTION_SKIP_UNCHANGED_ROWS,
+            OPTION_REFRESH_STRATEGY, OPTION_PARTITION_COLUMN, OPTION_STAGING_TABLE, OPTION_STAGING_VIEW,
+            OPTION_STAGING_CHUNK_SIZE, OPTION_CLUSTER_MODE, OPTION_WORK_TABLE, OPTION_LEASE_SECONDS,
+            OPTION_CHUNK_ORDER, OPTION_CLUSTERING_COLUMN, OPTION_HISTORY_TABLE, OPTION_CONCURRENCY,
+            OPTION_IN_FLIGHT_KEYS);
+    // Value of num_elements_in_clause that chooses the chunk size from the run history
+    public static final String NUM_ELEMENTS_IN_CLAUSE_TUNED = "tuned";
+    private static final int DEFAULT_STAGING_CHUNK_SIZE = 100000;
+    private static final int DEFAULT_LEASE_SECONDS = 600;
+
+    // Metadata queries sent at the same time during the validation. Each one has its own thread, as the check of the
+    // last update condition waits for the @LASTCACHEREFRESH query
+    private static final int STARTUP_THREADS = 6;
 
     /**
-     * Validates if the input parameters are correct and if the cache is enabled in both server and view
+     * Validates if the input parameters are correct and if the cache is enabled in both server and view, and returns
+     * the PK of the view.
      *
-     * @param env
-     * @param databaseEnvImpl
+     * The metadata queries do not depend on each other, so they are sent at the same time. The ones about the view are
+     * speculative: their results are only used if the database and the view exist. The last update condition is
+     * checked as soon as @LASTCACHEREFRESH, if used, has been replaced. Queries in progress in VDP are never
+     * interrupted: the ones whose results are not needed are waited for before returning.
+     *
+     * @param environment
+     * @param databaseEnvironmentImpl
      * @param inputValues
+     * @return PK fields of the view
      * @throws StoredProcedureException
      * @throws SQLException
      */
-    public static void validateInputParametersAndCache(DatabaseEnvironment env, DatabaseEnvironmentImpl databaseEnvImpl, Object[] inputValues)
+    public static List<String> validateInputParametersAndCache(DatabaseEnvironment environment,
+            DatabaseEnvironmentImpl databaseEnvironmentImpl, Object[] inputValues)
             throws StoredProcedureException, SQLException {
 
-        environment = env;
-        databaseEnvironmentImpl = databaseEnvImpl;
-
         List<String> errorMessages = new LinkedList<>();
         errorMessages.add("\n");
 
@@ -45,24 +86,133 @@ public static void validateInputParametersAndCache(DatabaseEnvironment env, Data
         String viewName = (String) inputValues[1];
         String lastUpdateCondition = (String) inputValues[2];
         String numElementsInClause = (String) inputValues[3];
+        // Only the procedure with options has the fifth input parameter
+        String options = inputValues.length > 4 ? (String) inputValues[4] : null;
+
+        boolean checkDB = !isEmpty(databaseName);
+        boolean checkView = checkDB && !isEmpty(viewName);
+        // Cluster workers refresh the chunks registered by the coordinator, so their condition is not used
+        boolean clusterWorker = isClusterWorker(options);
+        boolean useLastCacheRefresh = !clusterWorker && !isEmpty(lastUpdateCondition)
+                && lastUpdateCondition.toUpperCase().contains(LAST_CACHE_REFRESH);
+
+        ExecutorService executor = Executors.newFixedThreadPool(STARTUP_THREADS);
+        List<CompletableFuture<?>> speculativeQueries = Collections.emptyList();
+        try {
+            CompletableFuture<Boolean> databaseExists = checkDB
+                    ? async(() -> Boolean.valueOf(existsDatabase(environment, databaseName)), executor)
+                    : CompletableFuture.completedFuture(Boolean.FALSE);
+            CompletableFuture<Boolean> viewExists = checkView
+                    ? async(() -> Boolean.valueOf(existsView(environment, databaseName, viewName)), executor)
+                    : CompletableFuture.completedFuture(Boolean.FALSE);
+            CompletableFuture<Boolean> validCache = checkView
+                    ? async(() -> {
+                        testValidCache(environment, databaseEnvironmentImpl, databaseName, viewName);
+                        return Boolean.TRUE;
+                    }, executor)
+                    : CompletableFuture.completedFuture(Boolean.FALSE);
+            CompletableFuture<String> lastCacheRefresh = checkView && useLastCacheRefresh
+                    ? async(() -> getLastModifiedViewDate(databaseEnvironmentImpl, databaseName, viewName), executor)
+                    : CompletableFuture.completedFuture(null);
+            CompletableFuture<List<String>> pkFields = checkView
+                    ? async(() -> getPkFieldsByViewNameAndDb(environment, databaseName.replace("\"", ""),
+                        viewName.replace("\"", "")), executor)
+                    : CompletableFuture.completedFuture(null);
+            CompletableFuture<String> lastUpdateConditionError = checkView && !clusterWorker
+                    && !isEmpty(lastUpdateCondition)
+                    ? async(() -> queryLastUpdateCondition(environment, databaseName, viewName,
+                        replaceLastCacheRefresh(lastUpdateCondition, lastCacheRefresh.join())), executor)
+                    : CompletableFuture.completedFuture(null);
+            speculativeQueries = Arrays.asList(databaseExists, viewExists, validCache, lastCacheRefresh, pkFields,
+                    lastUpdateConditionError);
+
+            boolean validDB = testDatabaseName(databaseName, checkDB && await(databaseExists).booleanValue(),
+                    errorMessages);
+            boolean validView = testViewName(viewName, databaseName, validDB,
+                    validDB && checkView && await(viewExists).booleanValue(), errorMessages);
+
+            // If cache is not valid, the process stops as it might be needed if @LASTCACHEREFRESH parameter is used
+            if (validDB && validView) {
+                await(validCache);
+            }
+
+            if (validDB && validView && useLastCacheRefresh) {
+                // To update tuples since last cache refresh, we check the max value of modified date in the cache
+                // itself. lastUpdateCondition parameter override
+                inputValues[2] = replaceLastCacheRefresh(lastUpdateCondition, await(lastCacheRefresh));
+            }
+            boolean validLastUpdateCondition = testLastUpdateCondition((String) inputValues[2],
+                    validDB && validView ? await(lastUpdateConditionError) : null, errorMessages);
+            boolean validNumElementsInClause = NUM_ELEMENTS_IN_CLAUSE_TUNED.equalsIgnoreCase(numElementsInClause)
+                    ? testTunedNumElementsInClause(options, errorMessages)
+                    : testValidNumElementsInClause(numElementsInClause, errorMessages);
+            boolean validOptions = testValidOptions(options, errorMessages);
+
+            // If there are errors, there will be sent to VDP
+            if (!validDB || !validView || !validLastUpdateCondition || !validNumElementsInClause || !validOptions) {
+                throw new StoredProcedureException(join(errorMessages, "\n"));
+            }
+
+            return await(pkFields);
 
-        boolean validDB = testDatabaseName(databaseName, errorMessages);
-        boolean validView = testViewName(viewName, databaseName, validDB, errorMessages);
+        } finally {
+            // Speculative queries whose results are not needed finish on their own, so VDP is not interrupted in the
+            // middle of a query
+            executor.shutdown();
+            awaitQuietly(speculativeQueries);
+        }
+    }
+
+    /**
+     * Validates if the view and the chunk size are correct and if the cache is enabled in both server and view. It is
+     * used by the procedures that work with all the rows of the view, so they have no last update condition.
+     *
+     * @param environment
+     * @param databaseEnvironmentImpl
+     * @param databaseName
+     * @param viewName
+     * @param numElementsInClause
+     * @throws StoredProcedureException
+     * @throws SQLException
+     */
+    public static void validateViewAndCache(DatabaseEnvironment environment, DatabaseEnvironmentImpl databaseEnvironmentImpl,
+            String databaseName, String viewName, String numElementsInClause)
+            throws StoredProcedureException, SQLException {
+
+        List<String> errorMessages = new LinkedList<>();
+        errorMessages.add("\n");
+
+        boolean validDB = testDatabaseName(databaseName,
+                !isEmpty(databaseName) && existsDatabase(environment, databaseName), errorMessages);
+        boolean validView = testViewName(viewName, databaseName, validDB,
+                validDB && !isEmpty(viewName) && existsView(environment, databaseName, viewName), errorMessages);
 
-        // If cache is not valid, the process stops as it might be needed if @LASTCACHEREFRESH parameter is used
         if (validDB && validView) {
-            testValidCache(databaseEnvironmentImpl, databaseName, viewName, errorMessages);
+            testValidCache(environment, databaseEnvironmentImpl, databaseName, viewName);
         }
 
-        boolean validLastUpdateCondition = testLastUpdateCondition(databaseName, viewName, lastUpdateCondition, validDB, validView,
-                errorMessages, inputValues);
         boolean validNumElementsInClause = testValidNumElementsInClause(numElementsInClause, errorMessages);
 
         // If there are errors, there will be sent to VDP
-        if (!validDB || !validView || !validLastUpdateCondition || !validNumElementsInClause) {
+        if (!validDB || !validView || !validNumElementsInClause) {
             throw new StoredProcedureException(join(errorMessages, "\n"));
         }
+    }
 
+    /**
+     * Checks whether the invocation of the procedure has been cancelled, i.e. its thread has been interrupted. It is
+     * called between rows and chunks, so long loads stop promptly.
+     *
+     * @param phase what the load was doing, for the error message
+     * @param updatedRows number of PK values updated in cache so far
+     * @throws IncrementalCacheLoadStoreProcedureException if the load has been cancelled
+     */
+    public static void checkCancelled(String phase, int updatedRows) throws IncrementalCacheLoadStoreProcedureException {
+
+        if (Thread.currentThread().isInterrupted()) {
+            throw new IncrementalCacheLoadStoreProcedureException("Cancelled " + phase + " [Rows updated in cache: "
+                + updatedRows + "].", new InterruptedException(), updatedRows);
+        }
     }
 
     public static List<String> getPkFieldsByViewNameAndDb(DatabaseEnvironment environment, String databaseName, String viewName)
@@ -103,6 +253,78 @@ public static List<String> getPkFieldsByViewNameAndDb(DatabaseEnvironment enviro
         return pkFields;
     }
 
+    /**
+     * Returns the name of a field of the view, quoted to preserve its case. Quoted names are matched exactly and
+     * unquoted ones ignoring case, as VDP does.
+     *
+     * @param environment
+     * @param databaseName
+     * @param viewName
+     * @param option option the field name comes from, for the error message
+     * @param fieldName
+     * @return
+     * @throws StoredProcedureException if the view has no field with that name
+     */
+    public static String getViewField(DatabaseEnvironment environment, String databaseName, String viewName,
+            String option, String fieldName) throws StoredProcedureException {
+
+        String viewNameQuotesCleared = viewName.replace("\"", "");
+        boolean quoted = fieldName.length() > 1 && fieldName.startsWith("\"") && fieldName.endsWith("\"");
+        String name = quoted ? fieldName.substring(1, fieldName.length() - 1) : fieldName;
+
+        StringBuilder query = new StringBuilder();
+        query.append(" SELECT distinct c.column_name ");
+        query.append(" FROM GET_VIEW_COLUMNS() c ");
+        query.append(" WHERE c.input_database_name = '").append(databaseName.replace("\"", "")).append("'");
+        query.append(" AND c.input_view_name = '").append(viewNameQuotesCleared).append("'");
+
+        ResultSet rs = null;
+        try {
+            logger.debug("getViewField(): " + query);
+            rs = environment.executeQuery(query.toString());
+
+            while (rs.next()) {
+                String column = rs.getString(1);
+                if (quoted ? column.equals(name) : column.equalsIgnoreCase(name)) {
+                    return "\"" + column + "\"";
+                }
+            }
+        } catch (SQLException e) {
+            logger.debug("ERROR in getViewField(): ", e);
+            throw new StoredProcedureException("ERROR getting view fields: " + e.getMessage(), e);
+        } finally {
+            // Close resources
+            DBUtils.closeRs(rs);
+        }
+
+        throw new StoredProcedureException("options: '" + option + "' = '" + fieldName + "' is not a field of the view "
+                + viewName + " from the DB " + databaseName + ".");
+    }
+
+    /**
+     * Returns an identifier of the cache data source of the database, used to share the limits of the admission
+     * control among all the views cached in the same cache database. The database name is returned if the cache
+     * connection cannot be obtained.
+     *
+     * @param databaseEnvironmentImpl
+     * @param databaseName
+     * @return
+     */
+    public static String getCacheDataSourceKey(DatabaseEnvironmentImpl databaseEnvironmentImpl, String databaseName) {
+
+        String databaseNameQuotesCleared = databaseName.replace("\"", "");
+        Connection cacheConnection = null;
+        try {
+            cacheConnection = databaseEnvironmentImpl.getCacheConnection(databaseNameQuotesCleared, true);
+            return cacheConnection.getMetaData().getURL();
+        } catch (Exception e) {
+            logger.debug("ERROR in getCacheDataSourceKey(): ", e);
+            return databaseNameQuotesCleared;
+        } finally {
+            DBUtils.closeConn(cacheConnection);
+        }
+    }
+
     private static String getLastModifiedViewDate(DatabaseEnvironmentImpl databaseEnvironmentImpl, String databaseName, String viewName)
             throws StoredProcedureException {
 
@@ -141,80 +363,87 @@ private static String getLastModifiedViewDate(DatabaseEnvironmentImpl databaseEn
         return dateString;
     }
 
-    private static boolean testDatabaseName(String databaseName, List<String> errorMessages) throws SQLException {
+    private static boolean testDatabaseName(String databaseName, boolean exists, List<String> errorMessages) {
 
         // Test if databaseName is valid
         boolean validDB = true; // Used to know if it's necessary testing the view / lastUpdateCondition
 
-        if (databaseName == null || databaseName.length() == 0) {
+        if (isEmpty(databaseName)) {
             validDB = false;
             errorMessages.add("database_name can't be empty.");
-        } else {
-            ResultSet rs = null;
-            try {
-                // CATALOG_VDP_METADATA_VIEWS is case sensitive and does not work like a select
-                // statement. So if the viewName comes rounded by double quotes ("") they must
-                // be removed
-                String databaseNameQuotesCleared = databaseName.replace("\"", "");
-                String query = "SELECT input_database_name FROM CATALOG_VDP_METADATA_VIEWS('"
-                        + databaseNameQuotesCleared + "', null) LIMIT 1";
-                logger.debug("testDatabaseName(): " + query);
-                rs = environment.executeQuery(query);
-                // The query returns no rows if there is no database with the provided name
-                if (!rs.next()) {
-                    throw new StoredProcedureException();
-                }
-            } catch (StoredProcedureException e) {
-                validDB = false;
-                errorMessages.add("database_name = '" + databaseName + "' is not valid. ");
-                logger.debug("ERROR testDatabaseName() ", e);
-            } finally {
-                DBUtils.closeRs(rs);
-            }
+        } else if (!exists) {
+            validDB = false;
+            errorMessages.add("database_name = '" + databaseName + "' is not valid. ");
         }
 
         return validDB;
     }
 
-    private static boolean testViewName(String viewName, String databaseName, boolean validDB, List<String> errorMessages)
-            throws SQLException {
+    private static boolean existsDatabase(DatabaseEnvironment environment, String databaseName) throws SQLException {
+
+        ResultSet rs = null;
+        try {
+            // CATALOG_VDP_METADATA_VIEWS is case sensitive and does not work like a select
+            // statement. So if the viewName comes rounded by double quotes ("") they must
+            // be removed
+            String databaseNameQuotesCleared = databaseName.replace("\"", "");
+            String query = "SELECT input_database_name FROM CATALOG_VDP_METADATA_VIEWS('"
+                    + databaseNameQuotesCleared + "', null) LIMIT 1";
+            logger.debug("testDatabaseName(): " + query);
+            rs = environment.executeQuery(query);
+            // The query returns no rows if there is no database with the provided name
+            return rs.next();
+        } catch (StoredProcedureException e) {
+            logger.debug("ERROR testDatabaseName() ", e);
+            return false;
+        } finally {
+            DBUtils.closeRs(rs);
+        }
+    }
+
+    private static boolean testViewName(String viewName, String databaseName, boolean validDB, boolean exists,
+            List<String> errorMessages) {
 
         // Test if viewName is valid
         boolean validView = true;
-        if (viewName == null || viewName.length() == 0) {
+        if (isEmpty(viewName)) {
             validView = false;
             errorMessages.add("view_name can't be empty.");
-        } else if (validDB) {
-            ResultSet rs = null;
-            try {
-                // CATALOG_VDP_METADATA_VIEWS is case sensitive and does not work like a select
-                // statement. So if the viewName comes rounded by double quotes ("") they must
-                // be removed
-                String databaseNameQuotesCleared = databaseName.replace("\"", "");
-                String viewNameQuotesCleared = viewName.replace("\"", "");
-                String query = "SELECT input_database_name FROM CATALOG_VDP_METADATA_VIEWS('"
-                        + databaseNameQuotesCleared + "', '" + viewNameQuotesCleared + "') LIMIT 1";
-                logger.debug("testViewName(): " + query);
-                rs = environment.executeQuery(query);
-                // The query returns no rows if there is no view in the database with the
-                // provided parameters
-                if (!rs.next()) {
-                    throw new StoredProcedureException();
-                }
-            } catch (StoredProcedureException e) {
-                validView = false;
-                errorMessages.add("view_name = '" + viewName + "' does not exists in '" + databaseName + "' database. ");
-                logger.debug("ERROR testViewName() ", e);
-            } finally {
-                DBUtils.closeRs(rs);
-            }
+        } else if (validDB && !exists) {
+            validView = false;
+            errorMessages.add("view_name = '" + viewName + "' does not exists in '" + databaseName + "' database. ");
         }
 
         return validView;
     }
 
-    private static void testValidCache(DatabaseEnvironmentImpl databaseEnvironmentImpl, String databaseName,
-                                          String viewName, List<String> errorMessages)
+    private static boolean existsView(DatabaseEnvironment environment, String databaseName, String viewName)
+            throws SQLException {
+
+        ResultSet rs = null;
+        try {
+            // CATALOG_VDP_METADATA_VIEWS is case sensitive and does not work like a select
+            // statement. So if the viewName comes rounded by double quotes ("") they must
+            // be removed
+            String databaseNameQuotesCleared = databaseName.replace("\"", "");
+            String viewNameQuotesCleared = viewName.replace("\"", "");
+            String query = "SELECT input_database_name FROM CATALOG_VDP_METADATA_VIEWS('"
+                    + databaseNameQuotesCleared + "', '" + viewNameQuotesCleared + "') LIMIT 1";
+            logger.debug("testViewName(): " + query);
+            rs = environment.executeQuery(query);
+            // The query returns no rows if there is no view in the database with the
+            // provided parameters
+            return rs.next();
+        } catch (StoredProcedureException e) {
+            logger.debug("ERROR testViewName() ", e);
+            return false;
+        } finally {
+            DBUtils.closeRs(rs);
+        }
+    }
+
+    private static void testValidCache(DatabaseEnvironment environment, DatabaseEnvironmentImpl databaseEnvironmentImpl,
+                                          String databaseName, String viewName)
             throws StoredProcedureException {
 
         boolean isCacheServerEnabled = databaseEnvironmentImpl.isCacheEnabled(
@@ -224,7 +453,7 @@ private static void testValidCache(DatabaseEnvironmentImpl databaseEnvironmentIm
             throw new StoredProcedureException("The cache is not enabled in the Server.");
         }
 
-        boolean isViewCacheFull= isViewCacheEnabledFull(databaseName, viewName);
+        boolean isViewCacheFull= isViewCacheEnabledFull(environment, databaseName, viewName);
 
         if (!isViewCacheFull) {
             throw new StoredProcedureException("Cache full is not enabled in the view. Please, enable it and try again.");
@@ -233,46 +462,55 @@ private static void testValidCache(DatabaseEnvironmentImpl databaseEnvironmentIm
 
 
 
-    private static boolean testLastUpdateCondition(String databaseName, String viewName, String lastUpdateCondition, boolean validDB,
-            boolean validView, List<String> errorMessages, Object[] inputValues) throws SQLException {
+    private static boolean isClusterWorker(String options) {
+        try {
+            return ClusterRefresher.MODE_WORKER.equalsIgnoreCase(parseOptions(options).get(OPTION_CLUSTER_MODE));
+        } catch (StoredProcedureException e) {
+            // Invalid options are reported by testValidOptions
+            return false;
+        }
+    }
+
+    private static String replaceLastCacheRefresh(String lastUpdateCondition, String lastCacheRefresh) {
+        return lastCacheRefresh == null ? lastUpdateCondition
+                : lastUpdateCondition.replaceAll("(?i)" + LAST_CACHE_REFRESH, "'" + lastCacheRefresh + "'");
+    }
+
+    /**
+     * Executes a query with the last update condition and returns the error message if it is not valid, or null
+     */
+    private static String queryLastUpdateCondition(DatabaseEnvironment environment, String databaseName,
+            String viewName, String lastUpdateCondition) {
+
+        ResultSet rs = null;
+        try {
+            String query = "select 1 from " + databaseName + "." + viewName + " where " + lastUpdateCondition
+                    + " fetch first 1 rows only CONTEXT ('cache' = 'on')";
+            logger.debug("queryLastUpdateCondition(): " + query);
+            rs = environment.executeQuery(query);
+            return null;
+
+        } catch (StoredProcedureException e) {
+            logger.debug("ERROR queryLastUpdateCondition() ", e);
+            return "last_update_condition = '" + lastUpdateCondition + "' is not valid. Alternatively, " +
+                    "if you are calling this stored procedure on a view/database with an unicode-based name, please " +
+                    "check that you have specified its name surrounded with double-quotes. " + e.getMessage();
+        } finally {
+            DBUtils.closeRs(rs);
+        }
+    }
+
+    private static boolean testLastUpdateCondition(String lastUpdateCondition, String queryError,
+            List<String> errorMessages) {
 
         // Test if lastUpdateCondition is valid
         boolean validLastUpdateCondition = true;
-        if (lastUpdateCondition == null || lastUpdateCondition.length() == 0) {
+        if (isEmpty(lastUpdateCondition)) {
             validLastUpdateCondition = false;
             errorMessages.add("last_update_condition can't be empty.");
-        } else if (validDB && validView) {
-
-            ResultSet rs = null;
-            try {
-                // Special case: @LASTCACHEREFRESH
-                // We make it case insensitive
-                lastUpdateCondition = lastUpdateCondition.replaceAll("(?i)" + LAST_CACHE_REFRESH, LAST_CACHE_REFRESH);
-                if (lastUpdateCondition.contains(LAST_CACHE_REFRESH)) {
-                    // To update tuples since last cache refresh, we check the max value of
-                    // modified date in the cache itself
-                    String stringDate = getLastModifiedViewDate(databaseEnvironmentImpl, databaseName, viewName);
-                    lastUpdateCondition = lastUpdateCondition.replaceAll(LAST_CACHE_REFRESH, "'" + stringDate + "'");
-
-                    // lastUpdateCondition parameter override
-                    inputValues[2] = lastUpdateCondition;
-
-                }
-
-                String query = "select 1 from " + databaseName + "." + viewName + " where " + lastUpdateCondition
-                        + " fetch first 1 rows only CONTEXT ('cache' = 'on')";
-                logger.debug("testLastUpdateCondition(): " + query);
-                rs = environment.executeQuery(query);
-
-            } catch (StoredProcedureException e) {
-                validLastUpdateCondition = false;
-                errorMessages.add("last_update_condition = '" + lastUpdateCondition + "' is not valid. Alternatively, " +
-                        "if you are calling this stored procedure on a view/database with an unicode-based name, please " +
-                        "check that you have specified its name surrounded with double-quotes. " + e.getMessage());
-                logger.debug("ERROR testLastUpdateCondition() ", e);
-            } finally {
-                DBUtils.closeRs(rs);
-            }
+        } else if (queryError != null) {
+            validLastUpdateCondition = false;
+            errorMessages.add(queryError);
         }
 
         return validLastUpdateCondition;
@@ -302,7 +540,238 @@ private static boolean testValidNumElementsInClause(String numElementsInClauseSt
         return validNumElementsInClause;
     }
 
-    private static boolean isViewCacheEnabledFull(String databaseName, String viewName) throws StoredProcedureException {
+    private static boolean testTunedNumElementsInClause(String options, List<String> errorMessages) {
+
+        // The chunk size can only be tuned if there is a run history
+        try {
+            if (parseOptions(options).containsKey(OPTION_HISTORY_TABLE)) {
+                return true;
+            }
+        } catch (StoredProcedureException e) {
+            // The error is reported by the validation of the options
+            return true;
+        }
+        errorMessages.add("num_elements_in_clause = " + NUM_ELEMENTS_IN_CLAUSE_TUNED + " requires the '"
+                + OPTION_HISTORY_TABLE + "' option.");
+        return false;
+    }
+
+    private static boolean testValidOptions(String options, List<String> errorMessages) {
+
+        // Test if options is valid
+        boolean validOptions = true;
+        try {
+            Map<String, String> parsedOptions = parseOptions(options);
+            for (Map.Entry<String, String> option : parsedOptions.entrySet()) {
+                if (!VALID_OPTIONS.contains(option.getKey())) {
+                    validOptions = false;
+                    errorMessages.add("options: '" + option.getKey() + "' is not a valid option. Valid options are "
+                            + VALID_OPTIONS + ".");
+                } else if (OPTION_SKIP_UNCHANGED_ROWS.equals(option.getKey()) && !isBoolean(option.getValue())) {
+                    validOptions = false;
+                    errorMessages.add("options: '" + option.getKey() + "' must be 'true' or 'false'.");
+                } else if (OPTION_REFRESH_STRATEGY.equals(option.getKey())
+                        && !RefreshStrategySelector.STRATEGIES.contains(option.getValue().toLowerCase())) {
+                    validOptions = false;
+                    errorMessages.add("options: '" + option.getKey() + "' must be one of "
+                            + RefreshStrategySelector.STRATEGIES + ".");
+                } else if ((OPTION_PARTITION_COLUMN.equals(option.getKey()) || OPTION_STAGING_TABLE.equals(option.getKey())
+                        || OPTION_STAGING_VIEW.equals(option.getKey()) || OPTION_WORK_TABLE.equals(option.getKey())
+                        || OPTION_CLUSTERING_COLUMN.equals(option.getKey())
+                        || OPTION_HISTORY_TABLE.equals(option.getKey()))
+                        && option.getValue().length() == 0) {
+                    validOptions = false;
+                    errorMessages.add("options: '" + option.getKey() + "' can't be empty.");
+                } else if ((OPTION_STAGING_CHUNK_SIZE.equals(option.getKey()) || OPTION_LEASE_SECONDS.equals(option.getKey())
+                        || OPTION_CONCURRENCY.equals(option.getKey()))
+                        && !isPositiveInteger(option.getValue())) {
+                    validOptions = false;
+                    errorMessages.add("options: '" + option.getKey() + "' must be greater than 0.");
+                } else if (OPTION_CLUSTER_MODE.equals(option.getKey())
+                        && !ClusterRefresher.MODE_COORDINATOR.equalsIgnoreCase(option.getValue())
+                        && !ClusterRefresher.MODE_WORKER.equalsIgnoreCase(option.getValue())) {
+                    validOptions = false;
+                    errorMessages.add("options: '" + option.getKey() + "' must be '" + ClusterRefresher.MODE_COORDINATOR
+                            + "' or '" + ClusterRefresher.MODE_WORKER + "'.");
+                } else if (OPTION_CHUNK_ORDER.equals(option.getKey())
+                        && !RefreshQueryBuilder.CHUNK_ORDER_PK.equalsIgnoreCase(option.getValue())
+                        && !RefreshQueryBuilder.CHUNK_ORDER_NONE.equalsIgnoreCase(option.getValue())) {
+                    validOptions = false;
+                    errorMessages.add("options: '" + option.getKey() + "' must be '" + RefreshQueryBuilder.CHUNK_ORDER_PK
+                            + "' or '" + RefreshQueryBuilder.CHUNK_ORDER_NONE + "'.");
+                } else if (OPTION_IN_FLIGHT_KEYS.equals(option.getKey())
+                        && !InFlightKeyRegistry.POLICIES.contains(option.getValue().toLowerCase())) {
+                    validOptions = false;
+                    errorMessages.add("options: '" + option.getKey() + "' must be one of "
+                            + InFlightKeyRegistry.POLICIES + ".");
+                }
+            }
+            if (parsedOptions.containsKey(OPTION_STAGING_TABLE) != parsedOptions.containsKey(OPTION_STAGING_VIEW)) {
+                validOptions = false;
+                errorMessages.add("options: '" + OPTION_STAGING_TABLE + "' and '" + OPTION_STAGING_VIEW
+                        + "' have to be set together.");
+            }
+            if (parsedOptions.containsKey(OPTION_CLUSTER_MODE) && (!parsedOptions.containsKey(OPTION_WORK_TABLE)
+                    || !parsedOptions.containsKey(OPTION_STAGING_TABLE))) {
+                validOptions = false;
+                errorMessages.add("options: '" + OPTION_CLUSTER_MODE + "' requires the '" + OPTION_WORK_TABLE + "', '"
+                        + OPTION_STAGING_TABLE + "' and '" + OPTION_STAGING_VIEW + "' options.");
+            }
+        } catch (StoredProcedureException e) {
+            validOptions = false;
+            errorMessages.add(e.getMessage());
+        }
+
+        return validOptions;
+    }
+
+    /**
+     * Parses the 'options' input parameter. It has the same syntax as the VQL CONTEXT clause:
+     * 'option1'='value1', 'option2'='value2'... Quotes are optional and option names are case insensitive.
+     *
+     * @param options
+     * @return option values by option name in lower case
+     * @throws StoredProcedureException if the parameter has not the expected syntax
+     */
+    public static Map<String, String> parseOptions(String options) throws StoredProcedureException {
+
+        Map<String, String> parsedOptions = new LinkedHashMap<>();
+        if (options == null || options.trim().length() == 0) {
+            return parsedOptions;
+        }
+
+        for (String option : options.split(",")) {
+            int separator = option.indexOf('=');
+            if (separator <= 0) {
+                throw new StoredProcedureException("options: '" + option.trim() + "' is not valid. Expected syntax is "
+                        + "'option1'='value1', 'option2'='value2'...");
+            }
+            String name = unquote(option.substring(0, separator)).toLowerCase();
+            String value = unquote(option.substring(separator + 1));
+            parsedOptions.put(name, value);
+        }
+
+        return parsedOptions;
+    }
+
+    /**
+     * Sets the default values of the options in the input parameters object, for the procedures without the 'options'
+     * input parameter. The cache is refreshed by chunks of PK values, as in the procedure without options.
+     *
+     * @param inputParameters
+     * @throws StoredProcedureException
+     */
+    public static void applyOptions(InputParametersVO inputParameters) throws StoredProcedureException {
+        applyOptions(inputParameters, null, RefreshStrategySelector.STRATEGY_KEYS);
+    }
+
+    /**
+     * Sets the values of the 'options' input parameter in the input parameters object. The options have to be
+     * validated before.
+     *
+     * @param inputParameters
+     * @param options
+     * @param defaultRefreshStrategy refresh strategy used if the options do not set it
+     * @throws StoredProcedureException
+     */
+    public static void applyOptions(InputParametersVO inputParameters, String options, String defaultRefreshStrategy)
+        throws StoredProcedureException {
+
+        Map<String, String> parsedOptions = parseOptions(options);
+        inputParameters.setSkipUnchangedRows(Boolean.parseBoolean(parsedOptions.get(OPTION_SKIP_UNCHANGED_ROWS)));
+        String refreshStrategy = parsedOptions.get(OPTION_REFRESH_STRATEGY);
+        inputParameters.setRefreshStrategy(refreshStrategy != null ? refreshStrategy.toLowerCase()
+                : defaultRefreshStrategy);
+        inputParameters.setPartitionColumn(parsedOptions.get(OPTION_PARTITION_COLUMN));
+        inputParameters.setStagingTable(parsedOptions.get(OPTION_STAGING_TABLE));
+        inputParameters.setStagingView(parsedOptions.get(OPTION_STAGING_VIEW));
+        String stagingChunkSize = parsedOptions.get(OPTION_STAGING_CHUNK_SIZE);
+        inputParameters.setStagingChunkSize(stagingChunkSize != null ? Integer.parseInt(stagingChunkSize)
+                : DEFAULT_STAGING_CHUNK_SIZE);
+        String clusterMode = parsedOptions.get(OPTION_CLUSTER_MODE);
+        inputParameters.setClusterMode(clusterMode != null ? clusterMode.toLowerCase() : null);
+        inputParameters.setWorkTable(parsedOptions.get(OPTION_WORK_TABLE));
+        String leaseSeconds = parsedOptions.get(OPTION_LEASE_SECONDS);
+        inputParameters.setLeaseSeconds(leaseSeconds != null ? Integer.parseInt(leaseSeconds) : DEFAULT_LEASE_SECONDS);
+        String chunkOrder = parsedOptions.get(OPTION_CHUNK_ORDER);
+        inputParameters.setChunkOrder(chunkOrder != null ? chunkOrder.toLowerCase() : RefreshQueryBuilder.CHUNK_ORDER_NONE);
+        inputParameters.setClusteringColumn(parsedOptions.get(OPTION_CLUSTERING_COLUMN));
+        inputParameters.setHistoryTable(parsedOptions.get(OPTION_HISTORY_TABLE));
+        String concurrency = parsedOptions.get(OPTION_CONCURRENCY);
+        inputParameters.setConcurrency(concurrency != null ? Integer.valueOf(concurrency) : null);
+        String inFlightKeys = parsedOptions.get(OPTION_IN_FLIGHT_KEYS);
+        inputParameters.setInFlightKeys(inFlightKeys != null ? inFlightKeys.toLowerCase()
+                : InFlightKeyRegistry.POLICY_OFF);
+    }
+
+    private static String unquote(String value) {
+        String ret = value.trim();
+        if (ret.length() >= 2 && ret.startsWith("'") && ret.endsWith("'")) {
+            ret = ret.substring(1, ret.length() - 1).trim();
+        }
+        return ret;
+    }
+
+    private static boolean isEmpty(String value) {
+        return value == null || value.length() == 0;
+    }
+
+    private static <T> CompletableFuture<T> async(Callable<T> task, ExecutorService executor) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return task.call();
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    /**
+     * Waits for the queries to finish, ignoring their results and errors. If the thread is interrupted, it stops
+     * waiting and the queries finish in the background.
+     */
+    private static void awaitQuietly(List<CompletableFuture<?>> futures) {
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger.debug("ERROR in speculative validation query: ", e.getCause());
+        }
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws StoredProcedureException, SQLException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StoredProcedureException("Interrupted during the validation of the input parameters.", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof StoredProcedureException) {
+                throw (StoredProcedureException) cause;
+            }
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            }
+            throw new StoredProcedureException(cause.getMessage(), cause);
+        }
+    }
+
+    private static boolean isPositiveInteger(String value) {
+        try {
+            return Integer.parseInt(value) > 0;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static boolean isBoolean(String value) {
+        return "true".equalsIgnoreCase(value) || "false".equalsIgnoreCase(value);
+    }
+
+    private static boolean isViewCacheEnabledFull(DatabaseEnvironment environment, String databaseName,
+            String viewName) throws StoredProcedureException {
 
         boolean isCacheFull = false;
         ResultSet rs = null;
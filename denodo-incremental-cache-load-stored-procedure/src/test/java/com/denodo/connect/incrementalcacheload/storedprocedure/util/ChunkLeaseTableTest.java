@@ -0,0 +1,171 @@
+package com.denodo.connect.incrementalcacheload.storedprocedure.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Claims of the work table of cluster-wide loads by several workers, each one with its own connection to an embedded
+ * H2 database that plays the role of the cache database.
+ *
+ */
+public class ChunkLeaseTableTest {
+
+    private static final String URL = "jdbc:h2:mem:chunk_lease_table_test;DB_CLOSE_DELAY=-1;LOCK_TIMEOUT=10000";
+    private static final String TABLE = "work_table";
+    private static final String RUN_ID = "run-1";
+    private static final String DATABASE = "db";
+    private static final String VIEW = "view";
+
+    private final ChunkLeaseTable leaseTable = new ChunkLeaseTable(TABLE);
+    private Connection connection;
+
+    @Before
+    public void createTable() throws SQLException {
+        this.connection = DriverManager.getConnection(URL);
+        try (Statement statement = this.connection.createStatement()) {
+            statement.execute("CREATE TABLE " + TABLE + " (run_id VARCHAR(36), chunk_no INTEGER, database_name "
+                + "VARCHAR(255), view_name VARCHAR(255), seq_from INTEGER, seq_to INTEGER, status VARCHAR(10), "
+                + "owner VARCHAR(128), lease_expiration TIMESTAMP, attempts INTEGER, PRIMARY KEY (run_id, chunk_no))");
+        }
+    }
+
+    @After
+    public void dropTable() throws SQLException {
+        try (Statement statement = this.connection.createStatement()) {
+            statement.execute("DROP TABLE " + TABLE);
+        }
+        this.connection.close();
+    }
+
+    @Test
+    public void severalWorkersRefreshEachChunkOnce() throws Exception {
+
+        int chunks = 200;
+        int workers = 8;
+        registerChunks(chunks);
+
+        Map<Integer, AtomicInteger> claims = new ConcurrentHashMap<>();
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int w = 0; w < workers; w++) {
+                String owner = "worker-" + w;
+                results.add(executor.submit((Callable<Integer>) () -> {
+                    int completed = 0;
+                    try (Connection workerConnection = DriverManager.getConnection(URL)) {
+                        ChunkLeaseTable.Chunk chunk;
+                        while ((chunk = this.leaseTable.claim(workerConnection, RUN_ID, DATABASE, VIEW, owner,
+                            60000)) != null) {
+                            claims.computeIfAbsent(Integer.valueOf(chunk.getChunkNo()), k -> new AtomicInteger())
+                                .incrementAndGet();
+                            assertTrue(this.leaseTable.complete(workerConnection, chunk, owner));
+                            completed++;
+                        }
+                    }
+                    return Integer.valueOf(completed);
+                }));
+            }
+
+            int completed = 0;
+            for (Future<Integer> result : results) {
+                completed += result.get().intValue();
+            }
+            assertEquals(chunks, completed);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(chunks, claims.size());
+        for (Map.Entry<Integer, AtomicInteger> claim : claims.entrySet()) {
+            assertEquals("Chunk " + claim.getKey() + " claimed more than once", 1, claim.getValue().get());
+        }
+        ChunkLeaseTable.Progress progress = this.leaseTable.getProgress(this.connection, RUN_ID);
+        assertEquals(chunks, progress.getDoneChunks());
+        assertEquals(chunks * 10, progress.getDoneRows());
+        assertTrue(progress.isFinished());
+    }
+
+    @Test
+    public void expiredLeaseIsClaimedAgain() throws Exception {
+
+        registerChunks(1);
+
+        ChunkLeaseTable.Chunk chunk = this.leaseTable.claim(this.connection, RUN_ID, DATABASE, VIEW, "a", 200);
+        assertNotNull(chunk);
+        assertNull(this.leaseTable.claim(this.connection, RUN_ID, DATABASE, VIEW, "b", 200));
+
+        Thread.sleep(500);
+        ChunkLeaseTable.Chunk reclaimed = this.leaseTable.claim(this.connection, RUN_ID, DATABASE, VIEW, "b", 60000);
+        assertNotNull(reclaimed);
+        assertEquals(chunk.getChunkNo(), reclaimed.getChunkNo());
+
+        // The first owner lost the lease, so it can neither renew it nor complete the chunk
+        assertFalse(this.leaseTable.renew(this.connection, chunk, "a", 60000));
+        assertFalse(this.leaseTable.complete(this.connection, chunk, "a"));
+        assertTrue(this.leaseTable.complete(this.connection, reclaimed, "b"));
+    }
+
+    @Test
+    public void renewedLeaseIsNotClaimed() throws Exception {
+
+        registerChunks(1);
+
+        ChunkLeaseTable.Chunk chunk = this.leaseTable.claim(this.connection, RUN_ID, DATABASE, VIEW, "a", 300);
+        assertNotNull(chunk);
+        // The chunk runs for longer than the lease, which is renewed every third of its duration
+        for (int i = 0; i < 10; i++) {
+            Thread.sleep(100);
+            assertTrue(this.leaseTable.renew(this.connection, chunk, "a", 300));
+            assertNull(this.leaseTable.claim(this.connection, RUN_ID, DATABASE, VIEW, "b", 300));
+        }
+        assertEquals(1, this.leaseTable.getProgress(this.connection, RUN_ID).getRunningChunks());
+        assertTrue(this.leaseTable.complete(this.connection, chunk, "a"));
+    }
+
+    @Test
+    public void chunkFailsAfterMaxAttempts() throws Exception {
+
+        registerChunks(1);
+
+        for (int attempt = 1; attempt <= 3; attempt++) {
+            ChunkLeaseTable.Chunk chunk = this.leaseTable.claim(this.connection, RUN_ID, DATABASE, VIEW, "a", 60000);
+            assertNotNull(chunk);
+            // Only the last attempt marks the chunk as failed
+            assertEquals(attempt == 3, this.leaseTable.fail(this.connection, chunk, "a"));
+        }
+
+        assertNull(this.leaseTable.claim(this.connection, RUN_ID, DATABASE, VIEW, "a", 60000));
+        ChunkLeaseTable.Progress progress = this.leaseTable.getProgress(this.connection, RUN_ID);
+        assertEquals(1, progress.getFailedChunks());
+        assertTrue(progress.isFinished());
+    }
+
+    private void registerChunks(int chunks) throws SQLException {
+        List<int[]> seqRanges = new ArrayList<>();
+        for (int i = 0; i < chunks; i++) {
+            seqRanges.add(new int[]{i * 10, (i + 1) * 10});
+        }
+        this.leaseTable.registerChunks(this.connection, RUN_ID, DATABASE, VIEW, seqRanges);
+    }
+}
@@ -0,0 +1,105 @@
+package com.denodo.connect.incrementalcacheload.storedprocedure.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Chunk size and concurrency chosen from the run history
+ *
+ */
+public class ChunkSizeTunerTest {
+
+    @Test
+    public void defaultWithoutHistory() {
+
+        ChunkSizeTuner.Tuning tuning = new ChunkSizeTuner(Collections.<RunRecord>emptyList(), null).tune();
+
+        assertEquals(ChunkSizeTuner.DEFAULT_CHUNK_SIZE, tuning.getChunkSize());
+        assertEquals(1, tuning.getConcurrency());
+    }
+
+    @Test
+    public void untriedNeighbourOfBestIsExplored() {
+
+        List<RunRecord> runs = Arrays.asList(newRun(1000, 1, 100000, 10000), newRun(2000, 1, 100000, 8000));
+
+        ChunkSizeTuner.Tuning tuning = new ChunkSizeTuner(runs, Integer.valueOf(1)).tune();
+
+        // 2000 is the best one, its neighbour 4000 has not been tried
+        assertEquals(4000, tuning.getChunkSize());
+        assertEquals(1, tuning.getConcurrency());
+    }
+
+    @Test
+    public void bestIsUsedWhenNeighboursHaveBeenTried() {
+
+        List<RunRecord> runs = Arrays.asList(newRun(500, 1, 100000, 12000), newRun(1000, 1, 100000, 8000),
+            newRun(2000, 1, 100000, 10000));
+
+        ChunkSizeTuner.Tuning tuning = new ChunkSizeTuner(runs, Integer.valueOf(1)).tune();
+
+        assertEquals(1000, tuning.getChunkSize());
+    }
+
+    @Test
+    public void loadsOfDifferentDeltaSizeAreNotCompared() {
+
+        List<RunRecord> runs = new ArrayList<>();
+        // Small deltas are loaded at a low rate whatever the chunk size, as the fixed costs dominate
+        for (int i = 0; i < 5; i++) {
+            runs.add(newRun(1000, 1, 100000, 8000));
+        }
+        runs.add(newRun(500, 1, 100000, 12000));
+        runs.add(newRun(2000, 1, 500, 2000));
+
+        ChunkSizeTuner.Tuning tuning = new ChunkSizeTuner(runs, Integer.valueOf(1)).tune();
+
+        // The only load with 2000 had a much smaller delta, so 2000 is tried again instead of being discarded
+        assertEquals(2000, tuning.getChunkSize());
+        assertEquals("exploring from best chunk size=1000, concurrency=1 (12500 rows/s)", tuning.getReason());
+    }
+
+    @Test
+    public void failedConfigurationIsNotTriedAgain() {
+
+        RunRecord failed = newRun(2000, 1, 100000, 8000);
+        failed.setErrorMessage("ERROR executing query update of cache");
+        List<RunRecord> runs = Arrays.asList(newRun(1000, 1, 100000, 10000), failed, newRun(500, 1, 100000, 12000));
+
+        ChunkSizeTuner.Tuning tuning = new ChunkSizeTuner(runs, Integer.valueOf(1)).tune();
+
+        assertEquals(1000, tuning.getChunkSize());
+    }
+
+    @Test
+    public void cancelledLoadDoesNotDiscardConfiguration() {
+
+        RunRecord cancelled = newRun(2000, 1, 100000, 8000);
+        cancelled.setErrorMessage("Cancelled query update of cache [Rows updated in cache: 50000]. ");
+        cancelled.setCancelled(true);
+        List<RunRecord> runs = Arrays.asList(newRun(1000, 1, 100000, 10000), cancelled,
+            newRun(500, 1, 100000, 12000));
+
+        ChunkSizeTuner.Tuning tuning = new ChunkSizeTuner(runs, Integer.valueOf(1)).tune();
+
+        // 2000 has not been loaded completely, so it is tried
+        assertEquals(2000, tuning.getChunkSize());
+    }
+
+    private static RunRecord newRun(int chunkSize, int concurrency, int deltaRows, long refreshMillis) {
+        RunRecord run = new RunRecord();
+        run.setStrategy(RefreshStrategySelector.STRATEGY_KEYS);
+        run.setChunkSize(chunkSize);
+        run.setConcurrency(concurrency);
+        run.setDeltaRows(deltaRows);
+        run.setUpdatedRows(deltaRows);
+        run.setRefreshMillis(refreshMillis);
+        return run;
+    }
+}
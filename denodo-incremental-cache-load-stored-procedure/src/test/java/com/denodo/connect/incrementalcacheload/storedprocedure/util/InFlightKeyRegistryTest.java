@@ -0,0 +1,129 @@
+package com.denodo.connect.incrementalcacheload.storedprocedure.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Claims of the PK values refreshed by concurrent loads of the same view
+ *
+ */
+public class InFlightKeyRegistryTest {
+
+    private final InFlightKeyRegistry registry = InFlightKeyRegistry.getInstance();
+
+    @Test
+    public void keysInFlightAreNotClaimedTwice() {
+
+        long observedAt = System.nanoTime();
+        InFlightKeyRegistry.Claim first = this.registry.claim("db.claim", keys(1, 2), observedAt, false);
+        InFlightKeyRegistry.Claim second = this.registry.claim("db.claim", keys(2, 3), observedAt, false);
+        try {
+            assertEquals(2, first.getOwnedKeys().size());
+            assertEquals(1, second.getOwnedKeys().size());
+            assertEquals(3, second.getOwnedKeys().get(0)[0]);
+            assertEquals(1, second.getBlockedKeys().size());
+            assertTrue(second.getCoalescedKeys().isEmpty());
+        } finally {
+            second.close();
+            first.close();
+        }
+    }
+
+    @Test
+    public void keysOfOtherViewsAreNotInFlight() {
+
+        long observedAt = System.nanoTime();
+        InFlightKeyRegistry.Claim first = this.registry.claim("db.view_a", keys(1), observedAt, true);
+        InFlightKeyRegistry.Claim second = this.registry.claim("db.view_b", keys(1), observedAt, true);
+        try {
+            assertEquals(1, second.getOwnedKeys().size());
+        } finally {
+            second.close();
+            first.close();
+        }
+    }
+
+    @Test
+    public void refreshStartedAfterReadingTheKeysIsCoalesced() throws Exception {
+
+        long observedAt = System.nanoTime();
+        InFlightKeyRegistry.Claim other = this.registry.claim("db.coalesce", keys(1), System.nanoTime(), true);
+        InFlightKeyRegistry.Claim claim = this.registry.claim("db.coalesce", keys(1), observedAt, true);
+        try {
+            assertTrue(claim.getOwnedKeys().isEmpty());
+            assertTrue(claim.getBlockedKeys().isEmpty());
+            Map.Entry<InFlightKeyRegistry.Refresh, List<Object[]>> coalesced =
+                claim.getCoalescedKeys().entrySet().iterator().next();
+            assertEquals(1, coalesced.getValue().size());
+
+            other.complete(true);
+            assertTrue(coalesced.getKey().await());
+        } finally {
+            claim.close();
+            other.close();
+        }
+    }
+
+    @Test
+    public void refreshStartedBeforeReadingTheKeysIsWaitedFor() {
+
+        InFlightKeyRegistry.Claim other = this.registry.claim("db.wait", keys(1), System.nanoTime(), true);
+        long observedAt = System.nanoTime();
+        InFlightKeyRegistry.Claim claim = this.registry.claim("db.wait", keys(1), observedAt, true);
+        try {
+            assertTrue(claim.getCoalescedKeys().isEmpty());
+            assertEquals(1, claim.getBlockedKeys().size());
+        } finally {
+            claim.close();
+            other.close();
+        }
+    }
+
+    @Test
+    public void keysOfFailedRefreshAreClaimedAgain() throws Exception {
+
+        long observedAt = System.nanoTime();
+        InFlightKeyRegistry.Claim other = this.registry.claim("db.retry", keys(1), System.nanoTime(), true);
+        InFlightKeyRegistry.Claim claim = this.registry.claim("db.retry", keys(1), observedAt, true);
+        InFlightKeyRegistry.Refresh refresh = claim.getCoalescedKeys().keySet().iterator().next();
+        claim.close();
+
+        // The other load fails without completing its claim
+        other.close();
+        assertFalse(refresh.await());
+
+        InFlightKeyRegistry.Claim retry = this.registry.claim("db.retry", keys(1), observedAt, true);
+        try {
+            assertEquals(1, retry.getOwnedKeys().size());
+        } finally {
+            retry.close();
+        }
+    }
+
+    @Test
+    public void viewKeyIgnoresCaseOfUnquotedNames() {
+
+        assertEquals(InFlightKeyRegistry.getViewKey("Admin", "Customer"),
+            InFlightKeyRegistry.getViewKey("admin", "CUSTOMER"));
+        assertEquals(InFlightKeyRegistry.getViewKey("admin", "customer"),
+            InFlightKeyRegistry.getViewKey("\"admin\"", "\"customer\""));
+        assertNotEquals(InFlightKeyRegistry.getViewKey("admin", "\"Customer\""),
+            InFlightKeyRegistry.getViewKey("admin", "\"customer\""));
+    }
+
+    private static List<Object[]> keys(int... values) {
+        Object[][] keys = new Object[values.length][];
+        for (int i = 0; i < values.length; i++) {
+            keys[i] = new Object[]{Integer.valueOf(values[i])};
+        }
+        return Arrays.asList(keys);
+    }
+}
@@ -0,0 +1,63 @@
+package com.denodo.connect.incrementalcacheload.storedprocedure.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Delta queries built for the different chunk orders
+ *
+ */
+public class RefreshQueryBuilderTest {
+
+    private static final List<String> PK = Arrays.asList("\"id\"");
+
+    @Test
+    public void deltaQueryIsNotSortedByDefault() {
+
+        InputParametersVO inputParameters = newInputParameters(RefreshQueryBuilder.CHUNK_ORDER_NONE, "\"created\"");
+
+        assertEquals("SELECT DISTINCT \"id\" FROM db.v WHERE modified > 0 CONTEXT('cache'='off')",
+            RefreshQueryBuilder.buildDeltaQuery(inputParameters, PK, false));
+    }
+
+    @Test
+    public void deltaQueryIsSortedByClusteringColumnAndPk() {
+
+        InputParametersVO inputParameters = newInputParameters(RefreshQueryBuilder.CHUNK_ORDER_PK, "\"created\"");
+
+        assertEquals("SELECT DISTINCT \"id\", \"created\" FROM db.v WHERE modified > 0 ORDER BY \"created\", \"id\" "
+            + "CONTEXT('cache'='off')", RefreshQueryBuilder.buildDeltaQuery(inputParameters, PK, false));
+    }
+
+    @Test
+    public void pkClusteringColumnIsNotSelectedTwice() {
+
+        for (String clusteringColumn : Arrays.asList("id", "\"id\"")) {
+            InputParametersVO inputParameters = newInputParameters(RefreshQueryBuilder.CHUNK_ORDER_PK,
+                clusteringColumn);
+
+            assertEquals("SELECT DISTINCT \"id\" FROM db.v WHERE modified > 0 ORDER BY \"id\" CONTEXT('cache'='off')",
+                RefreshQueryBuilder.buildDeltaQuery(inputParameters, PK, false));
+        }
+    }
+
+    @Test
+    public void rangesAreAlwaysSortedByPk() {
+
+        InputParametersVO inputParameters = newInputParameters(RefreshQueryBuilder.CHUNK_ORDER_NONE, null);
+
+        assertEquals("SELECT DISTINCT \"id\" FROM db.v WHERE modified > 0 ORDER BY \"id\" CONTEXT('cache'='off')",
+            RefreshQueryBuilder.buildDeltaQuery(inputParameters, PK, true));
+    }
+
+    private static InputParametersVO newInputParameters(String chunkOrder, String clusteringColumn) {
+        InputParametersVO inputParameters = new InputParametersVO("db", "v", "modified > 0", Integer.valueOf(100));
+        inputParameters.setChunkOrder(chunkOrder);
+        inputParameters.setClusteringColumn(clusteringColumn);
+        return inputParameters;
+    }
+}
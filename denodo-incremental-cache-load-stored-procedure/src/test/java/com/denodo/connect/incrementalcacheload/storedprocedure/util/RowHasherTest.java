@@ -0,0 +1,71 @@
+package com.denodo.connect.incrementalcacheload.storedprocedure.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Hashes and keys of rows read from an embedded H2 database
+ *
+ */
+public class RowHasherTest {
+
+    private static final String URL = "jdbc:h2:mem:row_hasher_test";
+
+    @Test
+    public void binaryValuesAreHashedByContent() throws SQLException {
+
+        List<byte[]> hashes = hashRows("SELECT X'CAFE', 1 UNION ALL SELECT X'CAFE', 1 UNION ALL SELECT X'CAFF', 1");
+
+        assertTrue(RowHasher.sameHash(hashes.get(0), hashes.get(1)));
+        assertFalse(RowHasher.sameHash(hashes.get(0), hashes.get(2)));
+    }
+
+    @Test
+    public void binaryKeysAreEqualByContent() {
+
+        assertEquals(RowHasher.toKey(new Object[]{new byte[]{1, 2}, Integer.valueOf(3)}),
+            RowHasher.toKey(new Object[]{new byte[]{1, 2}, Long.valueOf(3)}));
+    }
+
+    @Test
+    public void repeatedKeysNeverMatch() throws SQLException {
+
+        List<byte[]> hashes = hashRows("SELECT 1 UNION ALL SELECT 1");
+        List<Object> key = RowHasher.toKey(new Object[]{Integer.valueOf(1)});
+        Map<List<Object>, byte[]> sourceHashes = new HashMap<>();
+        RowHasher.putHash(sourceHashes, key, hashes.get(0));
+        Map<List<Object>, byte[]> cacheHashes = new HashMap<>();
+        RowHasher.putHash(cacheHashes, key, hashes.get(0));
+        RowHasher.putHash(cacheHashes, key, hashes.get(1));
+
+        assertFalse(RowHasher.sameHash(sourceHashes.get(key), cacheHashes.get(key)));
+        assertFalse(RowHasher.sameHash(cacheHashes.get(key), cacheHashes.get(key)));
+    }
+
+    private static List<byte[]> hashRows(String query) throws SQLException {
+
+        List<byte[]> hashes = new ArrayList<>();
+        try (Connection connection = DriverManager.getConnection(URL);
+            Statement statement = connection.createStatement();
+            ResultSet rs = statement.executeQuery(query)) {
+            int columnCount = rs.getMetaData().getColumnCount();
+            while (rs.next()) {
+                hashes.add(RowHasher.hash(rs, columnCount));
+            }
+        }
+        return hashes;
+    }
+}